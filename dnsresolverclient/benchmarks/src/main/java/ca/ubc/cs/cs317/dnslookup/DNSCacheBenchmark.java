@@ -0,0 +1,88 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Lookups and insertions in the shared DNSCache holding a given number of nodes, each with one
+ * A record. Each fork fills the cache once; the nodes used by the benchmarks are drawn at random
+ * beforehand, so that lookups are spread over the whole cache rather than hitting the same
+ * entries.
+ *
+ * The cache holds roughly 400 bytes per node, including the interned names, so the largest size
+ * needs a heap of several gigabytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class DNSCacheBenchmark {
+
+    private static final int SAMPLE_SIZE = 1 << 16;
+    // Long enough for no record to expire during a run
+    private static final long TTL = 86400;
+
+    @Param({"1000", "1000000", "10000000"})
+    public int size;
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private DNSNode[] cachedNodes;
+    private DNSNode[] missingNodes;
+    private ResourceRecord[] records;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < size; i++)
+            cache.addResult(record(i));
+
+        SplittableRandom random = new SplittableRandom(317);
+        cachedNodes = new DNSNode[SAMPLE_SIZE];
+        missingNodes = new DNSNode[SAMPLE_SIZE];
+        records = new ResourceRecord[SAMPLE_SIZE];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            int host = random.nextInt(size);
+            records[i] = record(host);
+            cachedNodes[i] = records[i].getNode();
+            missingNodes[i] = new DNSNode(hostName(size + i), RecordType.A);
+        }
+    }
+
+    private static String hostName(int host) {
+        return "host" + host + ".zone" + (host % 1000) + ".example";
+    }
+
+    private static ResourceRecord record(int host) {
+        return new ResourceRecord(DomainName.of(hostName(host)), RecordType.A, TTL, host);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next() {
+            return next++ & (SAMPLE_SIZE - 1);
+        }
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getCachedResultsHit(Cursor cursor) {
+        return cache.getCachedResults(cachedNodes[cursor.next()]);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getCachedResultsMiss(Cursor cursor) {
+        return cache.getCachedResults(missingNodes[cursor.next()]);
+    }
+
+    /** Adds a record already cached for its node, as when a response repeats a known record,
+     * which keeps the size of the cache constant.
+     */
+    @Benchmark
+    public void addResult(Cursor cursor) {
+        cache.addResult(records[cursor.next()]);
+    }
+}
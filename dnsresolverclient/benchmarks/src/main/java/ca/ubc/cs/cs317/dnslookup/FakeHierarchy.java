@@ -0,0 +1,67 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/** Transport answering queries in-process, as a small authoritative hierarchy would: a root
+ * server delegating "com" to a TLD server, which delegates every second-level zone under it to a
+ * single zone server. The zone server has an A and an AAAA record for every name, and no records
+ * of other types.
+ *
+ * Responses are encoded in wire format and parsed by DNSResponse, so a resolution through this
+ * transport runs the same code as one over the network, minus the sockets. It is meant for a
+ * single thread.
+ */
+final class FakeHierarchy implements QueryTransport {
+
+    static final InetAddress ROOT_SERVER = address(198, 41, 0, 4);
+    private static final InetAddress TLD_SERVER = address(192, 5, 6, 30);
+    private static final InetAddress ZONE_SERVER = address(10, 53, 0, 1);
+
+    private final MessageDecoder decoder = new MessageDecoder();
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public DNSResponse query(DNSNode node, InetAddress server) {
+        String name = node.getHostName();
+        Messages response;
+        if (server.equals(ROOT_SERVER)) {
+            if (!name.endsWith(".com"))
+                response = new Messages(1, true, DNSResponse.NAME_ERROR, name, node.getType());
+            else
+                response = new Messages(1, false, DNSResponse.NO_ERROR, name, node.getType()).nextSection()
+                        .ns("com", 172800, "a.gtld-servers.net").nextSection()
+                        .a("a.gtld-servers.net", 172800, 192, 5, 6, 30);
+        } else if (server.equals(TLD_SERVER)) {
+            String zone = name.substring(name.lastIndexOf('.', name.length() - 5) + 1);
+            response = new Messages(1, false, DNSResponse.NO_ERROR, name, node.getType()).nextSection()
+                    .ns(zone, 172800, "ns1." + zone).nextSection()
+                    .a("ns1." + zone, 172800, 10, 53, 0, 1);
+        } else if (server.equals(ZONE_SERVER)) {
+            response = new Messages(1, true, DNSResponse.NO_ERROR, name, node.getType());
+            if (node.getType() == RecordType.A)
+                response.a(name, 300, 192, 0, 2, 1);
+            else if (node.getType() == RecordType.AAAA)
+                response.aaaa(name, 300, 0x20010db8_00000000L, 1);
+            else
+                response.nextSection().soa(name.substring(name.indexOf('.') + 1), 300, "ns1.example.com",
+                        "hostmaster.example.com", 300);
+        } else {
+            throw new TimeoutTwiceException();
+        }
+
+        try {
+            return DNSResponse.parse(ByteBuffer.wrap(response.toByteArray()), decoder);
+        } catch (UnknownHostException e) {
+            throw new OtherIOException();
+        }
+    }
+}
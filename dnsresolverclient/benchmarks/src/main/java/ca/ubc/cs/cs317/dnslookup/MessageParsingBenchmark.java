@@ -0,0 +1,99 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing of whole responses, and decoding of the names they contain, on the corpus of
+ * Messages. Both the record-by-record parser (RRConstructor) and the parser used by the
+ * resolvers (MessageDecoder, through DNSResponse.parse) are measured on the same messages.
+ *
+ * The record-by-record parser is no longer used by the application: it is kept in this module,
+ * with PureLabelsDecoder and RRConstructionOutcome, only as the baseline of these measurements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageParsingBenchmark {
+
+    @Param({"rootReferral", "cdnChain", "mailZone"})
+    public String message;
+
+    private byte[] data;
+    private ByteBuffer buffer;
+    private final MessageDecoder decoder = new MessageDecoder();
+    private final RRConstructor constructor = new RRConstructor();
+    private int firstRecord;
+    private int recordCount;
+    // Offsets of every name of the message: owner names, and names in the RDATA of NS and CNAME records
+    private int[] nameOffsets;
+
+    @Setup
+    public void setUp() {
+        switch (message) {
+            case "rootReferral":
+                data = Messages.rootReferral();
+                break;
+            case "cdnChain":
+                data = Messages.cdnChain();
+                break;
+            default:
+                data = Messages.mailZone();
+        }
+        buffer = ByteBuffer.wrap(data);
+        recordCount = ((data[6] & 0xff) << 8 | (data[7] & 0xff)) + ((data[8] & 0xff) << 8 | (data[9] & 0xff))
+                + ((data[10] & 0xff) << 8 | (data[11] & 0xff));
+
+        // The question has a single uncompressed name
+        int offset = 12;
+        while (data[offset] != 0)
+            offset += (data[offset] & 0xff) + 1;
+        firstRecord = offset + 5;
+
+        List<Integer> names = new ArrayList<>();
+        offset = firstRecord;
+        for (int i = 0; i < recordCount; i++) {
+            names.add(offset);
+            while (data[offset] != 0 && (data[offset] & 0xc0) != 0xc0)
+                offset += (data[offset] & 0xff) + 1;
+            offset += data[offset] == 0 ? 1 : 2;
+            int type = (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+            int rdataLength = (data[offset + 8] & 0xff) << 8 | (data[offset + 9] & 0xff);
+            offset += 10;
+            if (type == RecordType.NS.getCode() || type == RecordType.CNAME.getCode())
+                names.add(offset);
+            offset += rdataLength;
+        }
+        nameOffsets = names.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    @Benchmark
+    public void constructingRR(Blackhole blackhole) throws UnknownHostException {
+        int offset = firstRecord;
+        for (int i = 0; i < recordCount; i++) {
+            RRConstructionOutcome outcome = constructor.constructingRR(data, offset);
+            blackhole.consume(outcome.getRr());
+            offset = outcome.getNewOffset();
+        }
+    }
+
+    @Benchmark
+    public void decodeDomainName(Blackhole blackhole) {
+        for (int offset : nameOffsets)
+            blackhole.consume(RRConstructor.DecodeDomainName(data, offset));
+    }
+
+    @Benchmark
+    public DNSResponse parseResponse() throws UnknownHostException {
+        buffer.clear();
+        return DNSResponse.parse(buffer, decoder);
+    }
+}
@@ -0,0 +1,184 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Writes DNS response messages for the benchmarks, compressing every name against the names
+ * written before it, as servers do (RFC 1035, section 4.1.4).
+ *
+ * The corpus reproduces the shape of responses seen on the wire: a root referral with all the
+ * TLD servers and their glue, a CDN answer behind a chain of CNAME records, and a mail zone
+ * answer in which nearly every name is a compression pointer, or a label followed by one.
+ */
+final class Messages {
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private final Map<String, Integer> offsets = new HashMap<>();
+    private final int[] counts = new int[3];
+    private int section;
+    private int lengthOffset;
+
+    /** Starts a response to a query.
+     *
+     * @param id            ID of the response.
+     * @param authoritative Value of the AA bit.
+     * @param responseCode  RCODE of the response.
+     * @param name          Queried name.
+     * @param type          Queried type.
+     */
+    Messages(int id, boolean authoritative, int responseCode, String name, RecordType type) {
+        buffer.putShort((short) id);
+        buffer.put((byte) (0x80 | (authoritative ? 0x04 : 0)));
+        buffer.put((byte) responseCode);
+        buffer.putShort((short) 1);
+        buffer.position(12);
+        writeName(name);
+        buffer.putShort((short) type.getCode());
+        buffer.putShort((short) 1);
+    }
+
+    /** Returns the referral of a root server for a name under "com": the 13 TLD nameservers,
+     * with an A and an AAAA glue record for each of them.
+     */
+    static byte[] rootReferral() {
+        Messages message = new Messages(0x1234, false, 0, "www.example.com", RecordType.A).nextSection();
+        for (char server = 'a'; server <= 'm'; server++)
+            message.ns("com", 172800, server + ".gtld-servers.net");
+        message.nextSection();
+        for (char server = 'a'; server <= 'm'; server++) {
+            message.a(server + ".gtld-servers.net", 172800, 192, server - 'a' + 5, 6, 30);
+            message.aaaa(server + ".gtld-servers.net", 172800, 0x20010503_00000000L | (server - 'a') << 16, 0x2_0030L);
+        }
+        return message.toByteArray();
+    }
+
+    /** Returns the answer of a site served by a CDN: three CNAME records leading to the CDN's
+     * edge name, its addresses, and the CDN zone's nameservers with their glue.
+     */
+    static byte[] cdnChain() {
+        Messages message = new Messages(0x2345, true, 0, "www.shop.example.com", RecordType.A)
+                .cname("www.shop.example.com", 300, "www.shop.example.com.edgekey.net")
+                .cname("www.shop.example.com.edgekey.net", 21600, "e1234.dscb.akamaiedge.net")
+                .cname("e1234.dscb.akamaiedge.net", 60, "e1234.b.akamaiedge.net");
+        for (int i = 0; i < 4; i++)
+            message.a("e1234.b.akamaiedge.net", 20, 23, 45, 67, 80 + i);
+        message.nextSection();
+        for (int i = 0; i < 4; i++)
+            message.ns("b.akamaiedge.net", 4000, "n" + i + ".b.akamaiedge.net");
+        message.nextSection();
+        for (int i = 0; i < 4; i++)
+            message.a("n" + i + ".b.akamaiedge.net", 4000, 88, 221, 81, 192 + i);
+        return message.toByteArray();
+    }
+
+    /** Returns the MX answer of a mail domain, where every exchange, nameserver and glue name is
+     * within the queried zone, so nearly all names are compression pointers, or a label
+     * followed by one, some of them pointing into the RDATA of earlier records.
+     */
+    static byte[] mailZone() {
+        Messages message = new Messages(0x3456, true, 0, "example.com", RecordType.MX);
+        for (int i = 0; i < 10; i++)
+            message.mx("example.com", 3600, 10 * (i + 1), "mx" + i + ".mail.example.com");
+        message.nextSection();
+        for (int i = 1; i <= 4; i++)
+            message.ns("example.com", 86400, "ns" + i + ".example.com");
+        message.nextSection();
+        for (int i = 0; i < 10; i++)
+            message.a("mx" + i + ".mail.example.com", 3600, 203, 0, 113, 10 + i);
+        for (int i = 1; i <= 4; i++) {
+            message.a("ns" + i + ".example.com", 86400, 198, 51, 100, i);
+            message.aaaa("ns" + i + ".example.com", 86400, 0x20010db8_00000000L, i);
+        }
+        return message.toByteArray();
+    }
+
+    /** Moves on to the authority section, then to the additional section.
+     */
+    Messages nextSection() {
+        section++;
+        return this;
+    }
+
+    Messages a(String name, int ttl, int a, int b, int c, int d) {
+        start(name, RecordType.A, ttl).put((byte) a).put((byte) b).put((byte) c).put((byte) d);
+        return end();
+    }
+
+    Messages aaaa(String name, int ttl, long high, long low) {
+        start(name, RecordType.AAAA, ttl).putLong(high).putLong(low);
+        return end();
+    }
+
+    Messages ns(String name, int ttl, String nameserver) {
+        start(name, RecordType.NS, ttl);
+        writeName(nameserver);
+        return end();
+    }
+
+    Messages cname(String name, int ttl, String canonicalName) {
+        start(name, RecordType.CNAME, ttl);
+        writeName(canonicalName);
+        return end();
+    }
+
+    Messages mx(String name, int ttl, int preference, String exchange) {
+        start(name, RecordType.MX, ttl).putShort((short) preference);
+        writeName(exchange);
+        return end();
+    }
+
+    Messages soa(String name, int ttl, String primary, String mailbox, int minimum) {
+        start(name, RecordType.SOA, ttl);
+        writeName(primary);
+        writeName(mailbox);
+        buffer.putInt(1).putInt(7200).putInt(900).putInt(1209600).putInt(minimum);
+        return end();
+    }
+
+    /** Returns a copy of the message written so far.
+     */
+    byte[] toByteArray() {
+        buffer.putShort(6, (short) counts[0]);
+        buffer.putShort(8, (short) counts[1]);
+        buffer.putShort(10, (short) counts[2]);
+        byte[] message = new byte[buffer.position()];
+        buffer.get(0, message);
+        return message;
+    }
+
+    // Writes the fixed part of a record, leaving RDLENGTH to be filled by end.
+    private ByteBuffer start(String name, RecordType type, int ttl) {
+        writeName(name);
+        buffer.putShort((short) type.getCode()).putShort((short) 1).putInt(ttl);
+        lengthOffset = buffer.position();
+        return buffer.putShort((short) 0);
+    }
+
+    private Messages end() {
+        buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+        counts[section]++;
+        return this;
+    }
+
+    // Writes a name, replacing its longest suffix already written by a pointer.
+    private void writeName(String name) {
+        String rest = name.toLowerCase();
+        while (!rest.isEmpty()) {
+            Integer offset = offsets.get(rest);
+            if (offset != null) {
+                buffer.putShort((short) (0xc000 | offset));
+                return;
+            }
+            if (buffer.position() < 0x4000)
+                offsets.put(rest, buffer.position());
+            int dot = rest.indexOf('.');
+            String label = dot < 0 ? rest : rest.substring(0, dot);
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes(StandardCharsets.US_ASCII));
+            rest = dot < 0 ? "" : rest.substring(dot + 1);
+        }
+        buffer.put((byte) 0);
+    }
+}
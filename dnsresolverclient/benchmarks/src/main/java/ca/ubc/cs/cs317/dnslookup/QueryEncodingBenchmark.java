@@ -0,0 +1,40 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Encoding of a query into a reused buffer, as done by the transports for every query sent,
+ * with and without an EDNS OPT record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryEncodingBenchmark {
+
+    @Param({"www.example.com", "e1234.dscb.akamaiedge.net"})
+    public String hostName;
+
+    @Param({"0", "1232"})
+    public int ednsPayloadSize;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(QueryPacketBuilder.MAX_QUERY_LENGTH);
+    private DNSNode node;
+    private int queryID;
+
+    @Setup
+    public void setUp() {
+        node = new DNSNode(hostName, RecordType.A);
+    }
+
+    @Benchmark
+    public ByteBuffer writeQuery() {
+        buffer.clear();
+        QueryPacketBuilder.writeQuery(buffer, queryID++ & 0xffff, node, ednsPayloadSize);
+        return buffer;
+    }
+}
@@ -0,0 +1,66 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Full resolutions by the blocking Resolver against the in-process FakeHierarchy, so that the
+ * time measured is the resolver's own (caches, single-flight, referrals, encoding and parsing)
+ * plus the encoding of the fake responses, without any network round trip.
+ *
+ * The cache is limited to 100,000 records, as every resolution of a new name adds to it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResolutionBenchmark {
+
+    private FakeHierarchy hierarchy;
+    private Resolver resolver;
+    private DNSNode cachedNode;
+    private long next;
+
+    @Setup
+    public void setUp() {
+        DNSCache.getInstance().setMaximumSize(100_000, Long.MAX_VALUE);
+        hierarchy = new FakeHierarchy();
+        resolver = new Resolver(hierarchy, FakeHierarchy.ROOT_SERVER, null, false);
+        cachedNode = new DNSNode("www.cached.com", RecordType.A);
+        DNSCacheStats before = DNSCache.getInstance().getStats();
+        if (resolver.getResults(cachedNode).isEmpty())
+            throw new IllegalStateException("The fake hierarchy did not resolve " + cachedNode.getHostName());
+
+        // Only lookups count toward a node's popularity: reading the node back after resolving it
+        // must not, or a single lookup after the resolution would arm a prefetch of the node
+        resolver.getResults(cachedNode);
+        long hits = DNSCache.getInstance().getStats().getHitCount() - before.getHitCount();
+        if (hits != 1)
+            throw new IllegalStateException("A resolution and a lookup of " + cachedNode.getHostName()
+                    + " counted " + hits + " cache hits instead of 1");
+    }
+
+    /** A name whose records are cached: no query is sent.
+     */
+    @Benchmark
+    public Set<ResourceRecord> cachedName() {
+        return resolver.getResults(cachedNode);
+    }
+
+    /** A new name in a zone whose delegation is cached: one query, to the zone's server.
+     */
+    @Benchmark
+    public Set<ResourceRecord> newNameInKnownZone() {
+        return resolver.getResults(new DNSNode("host" + next++ + ".known.com", RecordType.A));
+    }
+
+    /** A name in a new zone: a query to the TLD server, then one to the zone's server.
+     */
+    @Benchmark
+    public Set<ResourceRecord> newZone() {
+        return resolver.getResults(new DNSNode("www.zone" + next++ + ".com", RecordType.A));
+    }
+}
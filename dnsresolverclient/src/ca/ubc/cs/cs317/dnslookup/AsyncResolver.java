@@ -0,0 +1,806 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Asynchronous resolver engine. Queries are sent from a pool of non-blocking datagram channels,
+ * each bound to its own ephemeral source port, spread over a few worker threads. Each worker waits
+ * on its own selector for the responses to its channels and for its timeouts, so receiving scales
+ * with the number of workers. Responses are matched to the query waiting for them using a table
+ * keyed by query ID and server address, so any number of queries, to any number of servers, can
+ * be outstanding at the same time, and a response is only accepted on the channel its query was
+ * sent from.
+ *
+ * Each query (and each retransmission) is sent from a channel of its worker picked at random,
+ * with a random ID. Both are drawn from a SplittableRandom owned by the worker and seeded from a
+ * SecureRandom, so a spoofed response has to guess the source port as well as the ID.
+ *
+ * Resolutions follow the same steps as the interactive resolver (iterative queries starting at
+ * the deepest zone known for the name, nameserver lookups when no glue is available, and CNAME indirection), but
+ * each step is a continuation of the future of the previous query instead of blocking code.
+ * Futures are completed on worker threads: dependent actions that may block should use the
+ * asynchronous variants of CompletableFuture's methods. Queries issued from a worker thread, such
+ * as the next step of a resolution, are handled by the same worker.
+ *
+ * When several servers can answer a query (e.g., the nameservers of a zone), they are raced:
+ * the query is sent to the first server, then to the next one each time a short delay passes
+ * without a response, up to a maximum number of servers, and the first response is used. A
+ * server that fails is replaced by the next one right away. Likewise, when a referral has no
+ * glue, the addresses of several of its nameservers are looked up at the same time. This keeps
+ * slow or unreachable servers from adding their full timeout to a resolution.
+ *
+ * Round-trip times of all responses are recorded in the ServerStatistics: raced servers are
+ * started fastest first, and each query waits as long as its server's retransmission timeout
+ * rather than a fixed time. The delay before starting the next server of a race is also cut to
+ * the current server's timeout, when it is shorter.
+ *
+ * Clients that want both the A and AAAA records of a name can resolve them together: the
+ * referrals leading to the name's zone are followed once, and both queries are then sent at the
+ * same time (see resolveDualStack).
+ *
+ * Concurrent lookups of the same node, including the lookups of nameserver addresses made
+ * during referrals, share a single resolution (see SingleFlight).
+ *
+ * Queries advertise a larger UDP payload size with EDNS (see Edns), and responses that are
+ * truncated nevertheless are retrieved again over TCP (see TcpTransport).
+ *
+ * Queries are not sent as soon as they are issued: they are queued, and each worker sends all its
+ * queued queries in one pass on each wakeup, encoding each one in the same direct buffer. Under
+ * load, a wakeup thus reads a batch of responses and sends a batch of queries, with no allocation
+ * per query. If a socket's send buffer is full, the rest of the queue is sent once the channel
+ * is writable again.
+ */
+public class AsyncResolver implements Closeable {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+    private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_REFERRALS = 32;
+    private static final int MAX_ATTEMPTS = 2;
+    private static final int DEFAULT_RACE_WIDTH = 3;
+    private static final long RACE_STAGGER_MILLIS = 250;
+    private static final int DEFAULT_WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int DEFAULT_SOCKETS_PER_WORKER = 4;
+    private static final SecureRandom SEEDS = new SecureRandom();
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final DelegationCache delegations = DelegationCache.getInstance();
+    private final ServerStatistics statistics = ServerStatistics.getInstance();
+    private final SingleFlight flights = SingleFlight.getInstance();
+    private final TcpTransport tcp = TcpTransport.getInstance();
+    private final Edns edns = Edns.getInstance();
+
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    private volatile InetAddress rootServer;
+    private volatile boolean open = true;
+    private volatile int raceWidth = DEFAULT_RACE_WIDTH;
+
+    /** Creates an engine with one worker per processor (up to four), each with four sockets, and
+     * starts its workers.
+     *
+     * @param rootServer Address of the root server where resolutions start.
+     * @throws IOException If a channel or selector cannot be opened.
+     */
+    public AsyncResolver(InetAddress rootServer) throws IOException {
+        this(rootServer, DEFAULT_WORKERS, DEFAULT_SOCKETS_PER_WORKER);
+    }
+
+    /** Creates an engine and starts its workers.
+     *
+     * @param rootServer       Address of the root server where resolutions start.
+     * @param workers          Number of worker threads, at least 1.
+     * @param socketsPerWorker Number of channels, each on its own source port, used by each worker,
+     *                         at least 1.
+     * @throws IOException If a channel or selector cannot be opened.
+     */
+    public AsyncResolver(InetAddress rootServer, int workers, int socketsPerWorker) throws IOException {
+        if (workers < 1 || socketsPerWorker < 1)
+            throw new IllegalArgumentException("At least one worker and one socket per worker are needed");
+        this.rootServer = rootServer;
+        this.workers = new Worker[workers];
+        try {
+            for (int i = 0; i < workers; i++)
+                this.workers[i] = new Worker(i, socketsPerWorker);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (Worker worker : this.workers)
+            worker.thread.start();
+    }
+
+    public void setRootServer(InetAddress rootServer) {
+        this.rootServer = rootServer;
+    }
+
+    /** Sets the maximum number of servers queried at the same time for the same query, and of
+     * nameservers looked up at the same time when a referral has no glue. A value of 1 sends
+     * queries to one server at a time, moving to the next one only when a server fails.
+     *
+     * @param raceWidth Maximum number of servers raced, at least 1.
+     */
+    public void setRaceWidth(int raceWidth) {
+        if (raceWidth < 1)
+            throw new IllegalArgumentException("Race width must be at least 1");
+        this.raceWidth = raceWidth;
+    }
+
+    /** Finds all the results for a specific node. Results already cached, including a cached
+     * negative result, are returned immediately; otherwise the node is resolved starting at the
+     * deepest known zone.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A future completed with the set of resource records for the node, or completed
+     * exceptionally with a TimeoutTwiceException if a server did not respond.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node) {
+        return getResults(node, 0, null);
+    }
+
+    /** Finds the A and AAAA records of a name together. If neither type is cached, the referrals
+     * leading to the name's zone are followed once, with A queries, and the A and AAAA queries
+     * are then sent at the same time to the zone's servers, instead of resolving each type on its
+     * own. The zone is taken to be reached when its servers are those of the name itself or of
+     * its parent (e.g., "example.com" for "www.example.com"), whether they come from the
+     * delegation cache or from a referral; a query sent there that is referred further is
+     * followed by its own type only.
+     *
+     * @param name Host name to be looked up.
+     * @return A future completed with the records of both types (either set may be empty), or
+     * completed exceptionally if the lookups of both types failed.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolveDualStack(DomainName name) {
+        DNSNode a = new DNSNode(name, RecordType.A);
+        DNSNode aaaa = new DNSNode(name, RecordType.AAAA);
+        // Nothing is shared if either type can be answered from the cache
+        if (isCached(a) || isCached(aaaa))
+            return merge(getResults(a, 0, null), getResults(aaaa, 0, null));
+
+        return findZoneServers(a, delegations.closestCut(name, rootServer), 0)
+                .thenCompose(cut -> merge(getResults(a, cut, 0, null), getResults(aaaa, cut, 0, null)));
+    }
+
+    // Returns true if the results of a node, or the fact that it has none, are cached. This is
+    // not a lookup of its own, so the cache does not count it.
+    private boolean isCached(DNSNode node) {
+        return !cache.peekCachedResults(node).isEmpty() || cache.peekNegativelyCached(node)
+                || CnameChain.follow(cache, node).getLength() > 0;
+    }
+
+    // Follows referrals for a node until the servers of the zone containing it are found,
+    // completing with that zone cut. If a server answers the query before that, or refers it
+    // upwards or sideways, the answer is cached and the cut of the servers that gave it is
+    // returned.
+    private CompletableFuture<DelegationCache.ZoneCut> findZoneServers(DNSNode node, DelegationCache.ZoneCut cut,
+                                                                       int referrals) {
+        DomainName name = node.getName();
+        DomainName zone = cut.getZone();
+        if (cut.getServers().isEmpty() || referrals > MAX_REFERRALS || zone == name || zone == name.getParent())
+            return CompletableFuture.completedFuture(cut);
+
+        return race(node, cut.getServers()).thenCompose(response -> {
+            response.cacheResults(cache, node, zone);
+            delegations.addReferral(node, response, zone);
+            SingleQueryResult next = response.nextStep(node);
+            String nextHostToLookup = next.getNexthosttolookup();
+            DomainName referralZone = response.getReferralZone(name);
+            if (next.isAA() || nextHostToLookup == null || !DelegationCache.isBelow(referralZone, zone))
+                return CompletableFuture.completedFuture(cut);
+
+            List<InetAddress> glue = response.getReferralServers();
+            if (nextHostToLookup.equalsIgnoreCase(node.getHostName()) && !glue.isEmpty())
+                return findZoneServers(node, new DelegationCache.ZoneCut(referralZone, glue), referrals + 1);
+            return resolveNameservers(response.getNameserverNames(), null).thenCompose(addresses ->
+                    findZoneServers(node, new DelegationCache.ZoneCut(referralZone, addresses), referrals + 1));
+        });
+    }
+
+    // Completes with the union of two sets of results once both are known. A failed lookup
+    // counts as having no results, unless both failed.
+    private static CompletableFuture<Set<ResourceRecord>> merge(CompletableFuture<Set<ResourceRecord>> first,
+                                                                CompletableFuture<Set<ResourceRecord>> second) {
+        CompletableFuture<Set<ResourceRecord>> merged = new CompletableFuture<>();
+        first.whenComplete((firstResults, firstError) -> second.whenComplete((secondResults, secondError) -> {
+            if (firstError != null && secondError != null) {
+                merged.completeExceptionally(firstError);
+                return;
+            }
+            Set<ResourceRecord> results = new LinkedHashSet<>();
+            if (firstResults != null)
+                results.addAll(firstResults);
+            if (secondResults != null)
+                results.addAll(secondResults);
+            merged.complete(results);
+        }));
+        return merged;
+    }
+
+    /** Looks up a node again, even if its records are cached, so that they are renewed before
+     * they expire. If a lookup of the node is already in progress, the future of that lookup is
+     * returned instead. Used by the cache to refresh popular and stale nodes.
+     *
+     * @param node Host and record type to be looked up.
+     * @return A future completed with the set of resource records for the node.
+     */
+    public CompletableFuture<Set<ResourceRecord>> refresh(DNSNode node) {
+        return flights.join(node, null, flight -> lookup(node, null, 0, flight));
+    }
+
+    // Returns the cached results of a node, or joins its lookup, which is started if it is not
+    // in progress yet. The parent is the lookup on whose behalf this one is made, if any.
+    private CompletableFuture<Set<ResourceRecord>> getResults(DNSNode node, int indirectionLevel,
+                                                              SingleFlight.Flight parent) {
+        if (indirectionLevel > MAX_INDIRECTION_LEVEL)
+            return CompletableFuture.completedFuture(Collections.emptySet());
+
+        Set<ResourceRecord> cached = cache.getCachedResults(node);
+        if (!cached.isEmpty())
+            return CompletableFuture.completedFuture(cached);
+        if (cache.isNegativelyCached(node))
+            return CompletableFuture.completedFuture(Collections.emptySet());
+        // If the name is a known alias, only the missing tail of its CNAME chain is resolved
+        CnameChain chain = CnameChain.follow(cache, node);
+        if (chain.getLength() > 0)
+            return resolveChain(node, chain, indirectionLevel, parent);
+
+        return flights.join(node, parent, flight -> lookup(node, null, indirectionLevel, flight));
+    }
+
+    // Same as getResults, but a lookup that is started begins at the given zone cut, known to be
+    // close to the node, rather than at the deepest zone known for it.
+    private CompletableFuture<Set<ResourceRecord>> getResults(DNSNode node, DelegationCache.ZoneCut start, int indirectionLevel,
+                                                              SingleFlight.Flight parent) {
+        if (isCached(node))
+            return getResults(node, indirectionLevel, parent);
+        return flights.join(node, parent, flight -> lookup(node, start, indirectionLevel, flight));
+    }
+
+    // Looks up a node on behalf of its flight, starting at the given zone cut, or at the deepest
+    // zone known for the node if it is null. Unless it is a refresh, the node is not cached.
+    private CompletableFuture<Set<ResourceRecord>> lookup(DNSNode node, DelegationCache.ZoneCut start, int indirectionLevel,
+                                                          SingleFlight.Flight flight) {
+        if (start == null)
+            start = delegations.closestCut(node.getName(), rootServer);
+        return retrieveResultsFromServer(node, start.getServers(), start.getZone(), 0, flight).thenCompose(ignored -> {
+            Set<ResourceRecord> results = cache.peekCachedResults(node);
+            if (!results.isEmpty())
+                return CompletableFuture.completedFuture(results);
+
+            // No answer: the response may have had a CNAME chain, complete or not
+            CnameChain chain = CnameChain.follow(cache, node);
+            if (chain.getLength() > 0)
+                return resolveChain(node, chain, indirectionLevel, flight);
+            return CompletableFuture.completedFuture(results);
+        });
+    }
+
+    // Returns the results of an alias, resolving the missing tail of its chain if needed. The
+    // results take the shortest TTL of the chain.
+    private CompletableFuture<Set<ResourceRecord>> resolveChain(DNSNode node, CnameChain chain, int indirectionLevel,
+                                                                SingleFlight.Flight flight) {
+        DNSNode tail = chain.getMissingTail();
+        if (tail == null)
+            return CompletableFuture.completedFuture(chain.getResults(node));
+        return getResults(tail, indirectionLevel + chain.getLength(), flight)
+                .thenApply(results -> chain.getResults(node, results));
+    }
+
+    // Queries a set of servers, authoritative for the given zone, and follows referrals until an
+    // authoritative response is found. A referral that does not lead below the zone ends the
+    // lookup, as the servers are lame for the node.
+    private CompletableFuture<Void> retrieveResultsFromServer(DNSNode node, List<InetAddress> servers, DomainName zone,
+                                                              int referrals, SingleFlight.Flight flight) {
+        if (servers.isEmpty() || referrals > MAX_REFERRALS)
+            return CompletableFuture.completedFuture(null);
+
+        return race(node, servers).thenCompose(response -> {
+            response.cacheResults(cache, node, zone);
+            delegations.addReferral(node, response, zone);
+            SingleQueryResult next = response.nextStep(node);
+            String nextHostToLookup = next.getNexthosttolookup();
+            DomainName referralZone = response.getReferralZone(node.getName());
+            if (next.isAA() || nextHostToLookup == null || !DelegationCache.isBelow(referralZone, zone))
+                return CompletableFuture.completedFuture(null);
+
+            // Glue that gives no address (e.g., AAAA only) is handled as if there was no glue
+            List<InetAddress> glue = response.getReferralServers();
+            if (nextHostToLookup.equalsIgnoreCase(node.getHostName()) && !glue.isEmpty())
+                return retrieveResultsFromServer(node, glue, referralZone, referrals + 1, flight);
+
+            // The nameservers' addresses must be found before the query can continue
+            return resolveNameservers(response.getNameserverNames(), flight).thenCompose(addresses ->
+                    retrieveResultsFromServer(node, addresses, referralZone, referrals + 1, flight));
+        });
+    }
+
+    // Looks up the addresses of several nameservers at the same time, completing with the
+    // addresses of the first one found. Fails only if all lookups failed. Also used by blocking
+    // resolvers sending their queries through this engine (see Resolver).
+    CompletableFuture<List<InetAddress>> resolveNameservers(List<DomainName> names, SingleFlight.Flight flight) {
+        List<DomainName> candidates = names.subList(0, Math.min(names.size(), raceWidth));
+        if (candidates.isEmpty())
+            return CompletableFuture.completedFuture(Collections.emptyList());
+
+        CompletableFuture<List<InetAddress>> first = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(candidates.size());
+        AtomicInteger failures = new AtomicInteger();
+        for (DomainName name : candidates) {
+            getResults(new DNSNode(name, RecordType.A), 0, flight).whenComplete((results, error) -> {
+                List<InetAddress> addresses = new ArrayList<>();
+                if (results != null)
+                    for (ResourceRecord record : results)
+                        addresses.add(record.getInetResult());
+                if (error != null)
+                    failures.incrementAndGet();
+                if (!addresses.isEmpty())
+                    first.complete(addresses);
+                else if (remaining.decrementAndGet() > 0)
+                    return;
+                else if (failures.get() == candidates.size())
+                    first.completeExceptionally(error);
+                else
+                    first.complete(Collections.emptyList());
+            });
+        }
+        return first;
+    }
+
+    /** Sends a query to several equivalent servers, starting with the first one and adding the
+     * next one each time a short delay passes without a response, or right away when a server
+     * fails. At most raceWidth servers are started because of delays. Queries still outstanding
+     * once a response arrives are abandoned.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers, most preferred first.
+     * @return A future completed with the first response, or completed exceptionally if all the
+     * servers failed, or with an IllegalArgumentException if there are no servers.
+     */
+    public CompletableFuture<DNSResponse> race(DNSNode node, List<InetAddress> servers) {
+        CompletableFuture<DNSResponse> result = new CompletableFuture<>();
+        if (servers.isEmpty()) {
+            result.completeExceptionally(new IllegalArgumentException("No servers to query"));
+            return result;
+        }
+        Worker worker = worker();
+        Race race = new Race(worker, node, statistics.order(servers), raceWidth, result);
+        worker.execute(race::startNext);
+        return result;
+    }
+
+    /** Sends a single query to a server. The query is sent again, with a new ID, if no response
+     * arrives before the server's timeout, and the future fails with a TimeoutTwiceException
+     * after the second timeout.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param server Address of the server to be used for the query.
+     * @return A future completed with the parsed response.
+     */
+    public CompletableFuture<DNSResponse> query(DNSNode node, InetAddress server) {
+        CompletableFuture<DNSResponse> future = new CompletableFuture<>();
+        PendingQuery query = new PendingQuery(node, new InetSocketAddress(server, DEFAULT_DNS_PORT), future);
+        Worker worker = worker();
+        worker.execute(() -> worker.send(query));
+        return future;
+    }
+
+    /** Returns a blocking view of this engine, which sends queries through the engine's shared
+     * channels and blocks the calling thread until the response arrives. Any number of threads
+     * may use it at the same time.
+     *
+     * @return A transport sending queries through this engine.
+     */
+    public QueryTransport asTransport() {
+        return new QueryTransport() {
+            @Override
+            public DNSResponse query(DNSNode node, InetAddress server) {
+                return join(AsyncResolver.this.query(node, server));
+            }
+
+            @Override
+            public DNSResponse query(DNSNode node, List<InetAddress> servers) {
+                return join(race(node, servers));
+            }
+        };
+    }
+
+    private static DNSResponse join(CompletableFuture<DNSResponse> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException && !(e.getCause() instanceof CompletionException))
+                throw (RuntimeException) e.getCause();
+            throw new OtherIOException();
+        }
+    }
+
+    // Returns the worker of the calling thread, so that the queries of a resolution stay on the
+    // same worker, or the next worker in turn for other threads.
+    private Worker worker() {
+        Thread current = Thread.currentThread();
+        for (Worker worker : workers)
+            if (worker.thread == current)
+                return worker;
+        return workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+    }
+
+    /** Stops the engine. Queries still outstanding fail with an OtherIOException.
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        for (Worker worker : workers)
+            if (worker != null)
+                worker.selector.wakeup();
+        for (Worker worker : workers)
+            if (worker != null)
+                worker.close();
+    }
+
+    // A worker thread with its own selector and channels. Except for execute, its methods and
+    // state are only used on its thread.
+    private final class Worker {
+        private final Selector selector;
+        private final DatagramChannel[] channels;
+        private final Thread thread;
+        private final SplittableRandom random = new SplittableRandom(SEEDS.nextLong());
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(QueryPacketBuilder.MAX_QUERY_LENGTH);
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocate(Edns.RECEIVE_BUFFER_SIZE);
+        private final MessageDecoder decoder = new MessageDecoder();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Queries waiting to be sent
+        private final Deque<PendingQuery> outgoing = new ArrayDeque<>();
+        private final Map<PendingKey, PendingQuery> pending = new HashMap<>();
+        // Deadlines are never removed when a response arrives: they are ignored once their key is
+        // no longer pending, which keeps handling a response O(1).
+        private final PriorityQueue<Deadline> deadlines =
+                new PriorityQueue<>(Comparator.comparingLong(deadline -> deadline.time));
+        // Key of the channel whose send buffer was full, if any
+        private SelectionKey blocked;
+
+        Worker(int index, int sockets) throws IOException {
+            this.selector = Selector.open();
+            this.channels = new DatagramChannel[sockets];
+            try {
+                for (int i = 0; i < sockets; i++) {
+                    channels[i] = DatagramChannel.open();
+                    channels[i].bind(null);
+                    channels[i].configureBlocking(false);
+                    channels[i].register(selector, SelectionKey.OP_READ);
+                }
+            } catch (IOException e) {
+                closeChannels();
+                throw e;
+            }
+            this.thread = new Thread(this::run, "dns-async-resolver-" + index);
+            thread.setDaemon(true);
+        }
+
+        // Runs a task on this worker after a delay. Must be called on the worker's thread.
+        private void schedule(long delayMillis, Runnable task) {
+            deadlines.add(new Deadline(null, System.currentTimeMillis() + delayMillis, task));
+        }
+
+        // Runs a task on this worker, directly if already running on its thread.
+        private void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        // Queues a query, which is sent with all the others queued before the worker waits again.
+        private void send(PendingQuery query) {
+            if (!open) {
+                query.future.completeExceptionally(new OtherIOException());
+                return;
+            }
+            int queryID;
+            do {
+                queryID = random.nextInt(1, 0x10000);
+            } while (pending.containsKey(new PendingKey(queryID, query.server)));
+
+            query.key = new PendingKey(queryID, query.server);
+            query.channel = channels[random.nextInt(channels.length)];
+            // After a timeout, the server's timeout is already backed off for the second attempt
+            query.attempts++;
+            pending.put(query.key, query);
+            outgoing.add(query);
+        }
+
+        // Sends the queued queries, until the queue is empty or a socket's send buffer is full.
+        private void flush() {
+            if (blocked != null) {
+                blocked.interestOps(SelectionKey.OP_READ);
+                blocked = null;
+            }
+            PendingQuery query;
+            while ((query = outgoing.peek()) != null) {
+                // Abandoned while queued (e.g., another server of its race responded)
+                if (pending.get(query.key) != query) {
+                    outgoing.poll();
+                    continue;
+                }
+                sendBuffer.clear();
+                query.ednsPayloadSize = edns.payloadSizeFor(query.server.getAddress());
+                QueryPacketBuilder.writeQuery(sendBuffer, query.key.queryID, query.node, query.ednsPayloadSize);
+                sendBuffer.flip();
+                try {
+                    if (query.channel.send(sendBuffer, query.server) == 0) {
+                        blocked = query.channel.keyFor(selector);
+                        blocked.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        break;
+                    }
+                } catch (IOException e) {
+                    outgoing.poll();
+                    pending.remove(query.key);
+                    query.future.completeExceptionally(new OtherIOException());
+                    continue;
+                }
+                outgoing.poll();
+                query.sentAt = System.nanoTime();
+                query.deadline = System.currentTimeMillis() + statistics.timeoutFor(query.server.getAddress());
+                deadlines.add(new Deadline(query.key, query.deadline, null));
+            }
+        }
+
+        // Event loop: runs submitted tasks, sends queued queries, reads all available responses and
+        // handles timeouts.
+        private void run() {
+            while (open) {
+                try {
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    flush();
+
+                    Deadline first = deadlines.peek();
+                    if (first == null)
+                        selector.select();
+                    else
+                        selector.select(Math.max(1, first.time - System.currentTimeMillis()));
+                    for (SelectionKey key : selector.selectedKeys())
+                        if (key.isReadable())
+                            receive((DatagramChannel) key.channel());
+                    selector.selectedKeys().clear();
+
+                    expireTimeouts(System.currentTimeMillis());
+                } catch (IOException | RuntimeException e) {
+                    // The state of the worker is unknown: its outstanding queries fail, so that
+                    // their resolutions report the error, and the worker starts over
+                    if (open)
+                        failPending();
+                }
+            }
+        }
+
+        private void receive(DatagramChannel channel) throws IOException {
+            SocketAddress source;
+            while ((source = channel.receive(receiveBuffer)) != null) {
+                receiveBuffer.flip();
+                handleResponse(channel, source);
+                receiveBuffer.clear();
+            }
+        }
+
+        private void handleResponse(DatagramChannel channel, SocketAddress source) {
+            if (receiveBuffer.remaining() < 12)
+                return;
+            int responseID = ((receiveBuffer.get(0) & 0xff) << 8) | (receiveBuffer.get(1) & 0xff);
+            // Responses that do not match an outstanding query sent from the same channel (e.g.,
+            // late or spoofed) are dropped
+            PendingKey key = new PendingKey(responseID, source);
+            PendingQuery query = pending.get(key);
+            if (query == null || query.channel != channel)
+                return;
+            pending.remove(key);
+
+            statistics.recordResponse(query.server.getAddress(), (System.nanoTime() - query.sentAt) / 1e6);
+            try {
+                // A truncated response, or one that filled the whole buffer and may have been cut
+                // off, is retrieved again over TCP, and the query completed back on this worker
+                if (decoder.wrap(receiveBuffer).isTruncated() || receiveBuffer.limit() == receiveBuffer.capacity()) {
+                    tcp.queryAsync(query.node, query.server.getAddress()).whenComplete((response, error) -> execute(() -> {
+                        if (error != null)
+                            query.future.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                        else
+                            query.future.complete(response);
+                    }));
+                    return;
+                }
+                DNSResponse response = DNSResponse.parse(receiveBuffer, decoder);
+                // A server that does not support EDNS is queried again without it, now and from
+                // now on; this is not counted as a retransmission
+                if (query.ednsPayloadSize > 0 && response.isEdnsRejection()) {
+                    edns.recordRejection(query.server.getAddress());
+                    query.attempts--;
+                    send(query);
+                    return;
+                }
+                query.future.complete(response);
+            } catch (IOException | RuntimeException e) {
+                query.future.completeExceptionally(e);
+            }
+        }
+
+        private void expireTimeouts(long now) {
+            Deadline deadline;
+            while ((deadline = deadlines.peek()) != null && deadline.time <= now) {
+                deadlines.poll();
+                if (deadline.task != null) {
+                    deadline.task.run();
+                    continue;
+                }
+                PendingQuery query = pending.get(deadline.key);
+                if (query == null || query.deadline != deadline.time)
+                    continue;
+                pending.remove(deadline.key);
+                statistics.recordTimeout(query.server.getAddress());
+                if (query.attempts < MAX_ATTEMPTS)
+                    send(query);
+                else
+                    query.future.completeExceptionally(new TimeoutTwiceException());
+            }
+        }
+
+        // Waits for the thread to stop, then fails the queries still outstanding.
+        private void close() throws IOException {
+            if (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            failPending();
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+            closeChannels();
+            selector.close();
+        }
+
+        // Fails all outstanding queries with an OtherIOException.
+        private void failPending() {
+            List<PendingQuery> queries = new ArrayList<>(pending.values());
+            pending.clear();
+            outgoing.clear();
+            for (PendingQuery query : queries)
+                query.future.completeExceptionally(new OtherIOException());
+        }
+
+        private void closeChannels() throws IOException {
+            for (DatagramChannel channel : channels)
+                if (channel != null)
+                    channel.close();
+        }
+    }
+
+    private static final class PendingKey {
+        private final int queryID;
+        private final SocketAddress server;
+
+        PendingKey(int queryID, SocketAddress server) {
+            this.queryID = queryID;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PendingKey that = (PendingKey) o;
+            return queryID == that.queryID && server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * queryID + server.hashCode();
+        }
+    }
+
+    // Either the timeout of a pending query, or a task to be run at a specific time.
+    private static final class Deadline {
+        private final PendingKey key;
+        private final long time;
+        private final Runnable task;
+
+        Deadline(PendingKey key, long time, Runnable task) {
+            this.key = key;
+            this.time = time;
+            this.task = task;
+        }
+    }
+
+    // State of a race between servers. Only used on the thread of its worker.
+    private final class Race {
+        private final Worker worker;
+        private final DNSNode node;
+        private final List<InetAddress> servers;
+        private final int width;
+        private final CompletableFuture<DNSResponse> result;
+        private final List<PendingQuery> queries = new ArrayList<>();
+        private int failures;
+
+        Race(Worker worker, DNSNode node, List<InetAddress> servers, int width, CompletableFuture<DNSResponse> result) {
+            this.worker = worker;
+            this.node = node;
+            this.servers = servers;
+            this.width = width;
+            this.result = result;
+        }
+
+        void startNext() {
+            if (result.isDone() || queries.size() == servers.size())
+                return;
+            PendingQuery query = new PendingQuery(node,
+                    new InetSocketAddress(servers.get(queries.size()), DEFAULT_DNS_PORT), new CompletableFuture<>());
+            queries.add(query);
+            int started = queries.size();
+            query.future.whenComplete(this::finished);
+            worker.send(query);
+            // Add another server if neither a response nor a failure arrives in time
+            if (started < width && started < servers.size())
+                worker.schedule(Math.min(RACE_STAGGER_MILLIS, statistics.timeoutFor(query.server.getAddress())), () -> {
+                    if (queries.size() == started)
+                        startNext();
+                });
+        }
+
+        private void finished(DNSResponse response, Throwable error) {
+            if (result.isDone())
+                return;
+            if (error == null) {
+                result.complete(response);
+                abandonOthers();
+            } else if (++failures == servers.size()) {
+                result.completeExceptionally(error);
+            } else {
+                startNext();
+            }
+        }
+
+        private void abandonOthers() {
+            for (PendingQuery query : queries) {
+                if (query.future.isDone())
+                    continue;
+                if (query.key != null)
+                    worker.pending.remove(query.key, query);
+                query.future.cancel(false);
+            }
+        }
+    }
+
+    private static final class PendingQuery {
+        private final DNSNode node;
+        private final InetSocketAddress server;
+        private final CompletableFuture<DNSResponse> future;
+        private PendingKey key;
+        private DatagramChannel channel;
+        private int ednsPayloadSize;
+        private int attempts;
+        private long sentAt;
+        private long deadline;
+
+        PendingQuery(DNSNode node, InetSocketAddress server, CompletableFuture<DNSResponse> future) {
+            this.node = node;
+            this.server = server;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/** Resolves a stream of lookups, one per line, with a bounded number of lookups in progress at
+ * any time. Each line contains a host name and, optionally, a record type (A by default), or
+ * A+AAAA to look up both address types together (see AsyncResolver#resolveDualStack); anything
+ * after a '#' is ignored. Lines are read only as slots in the concurrency window become
+ * free, and results are written as soon as each lookup completes, so memory use does not depend
+ * on the size of the input. Completed lookups are handed to a dedicated writer thread, which
+ * formats and writes them in the order they complete, so the resolver's threads never wait on
+ * the output; a lookup's slot is only freed once its results are written.
+ *
+ * Results are written either in the same format as the interactive lookup command, or as
+ * NDJSON, one object per lookup.
+ */
+public class BatchLookup {
+
+    public static final int DEFAULT_CONCURRENCY = 1000;
+
+    private static final String DUAL_STACK = "A+AAAA";
+
+    private final VirtualThreadResolver resolver;
+    private final int concurrency;
+    private final boolean ndjson;
+    private final PrintStream out;
+    // Completed lookups waiting to be written, ended by END once all lookups completed
+    private final BlockingQueue<Completed> completed = new LinkedBlockingQueue<>();
+
+    private static final Completed END = new Completed(null, null, null);
+
+    /**
+     * @param resolver    Resolver used for all lookups.
+     * @param concurrency Maximum number of lookups in progress at the same time.
+     * @param ndjson      If true, results are written as NDJSON instead of text.
+     * @param out         Stream where results are written.
+     */
+    public BatchLookup(VirtualThreadResolver resolver, int concurrency, boolean ndjson, PrintStream out) {
+        this.resolver = resolver;
+        this.concurrency = concurrency;
+        this.ndjson = ndjson;
+        this.out = out;
+    }
+
+    /** Reads and resolves all lookups from the input, returning once all of them completed.
+     *
+     * @param input Reader providing one lookup per line.
+     * @return The number of lookups performed.
+     * @throws IOException          If the input could not be read.
+     * @throws InterruptedException If the thread was interrupted while waiting for lookups.
+     */
+    public long run(BufferedReader input) throws IOException, InterruptedException {
+        Semaphore window = new Semaphore(concurrency);
+        Thread writer = new Thread(() -> writeCompleted(window), "dns-batch-writer");
+        writer.setDaemon(true);
+        writer.start();
+        long count = 0;
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                Lookup lookup = parseLine(line);
+                if (lookup == null)
+                    continue;
+
+                window.acquire();
+                count++;
+                CompletableFuture<Set<ResourceRecord>> results = lookup.dualStack
+                        ? resolver.resolveDualStack(lookup.node.getName()) : resolver.resolve(lookup.node);
+                results.whenComplete((records, error) -> completed.add(new Completed(lookup, records, error)));
+            }
+            // Wait for the lookups still in progress to be written
+            window.acquire(concurrency);
+            window.release(concurrency);
+        } finally {
+            completed.add(END);
+            writer.join();
+        }
+        return count;
+    }
+
+    // Writes completed lookups until END is reached, freeing the slot of each one once written. A
+    // lookup that cannot be written is reported, and the following ones are still written.
+    private void writeCompleted(Semaphore window) {
+        try {
+            Completed lookup;
+            while ((lookup = completed.take()) != END) {
+                try {
+                    write(lookup.lookup, lookup.results, lookup.error);
+                } catch (RuntimeException e) {
+                    System.err.println("Cannot write results of " + lookup.lookup.node.getHostName() + ": " + e);
+                } finally {
+                    window.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Nothing else is written
+        }
+    }
+
+    // Returns the lookup for a line, or null if the line is empty or invalid.
+    private static Lookup parseLine(String line) {
+        String[] fields = line.split("#", 2)[0].trim().split("\\s+");
+        if (fields[0].isEmpty())
+            return null;
+        if (fields.length > 2) {
+            System.err.println("Invalid batch line: " + line);
+            return null;
+        }
+        try {
+            boolean dualStack = fields.length == 2 && fields[1].equalsIgnoreCase(DUAL_STACK);
+            RecordType type = fields.length == 2 && !dualStack ? RecordType.valueOf(fields[1].toUpperCase()) : RecordType.A;
+            if (type == RecordType.OTHER)
+                throw new IllegalArgumentException("OTHER is not a record type that can be queried");
+            return new Lookup(new DNSNode(fields[0], type), dualStack);
+        } catch (IllegalArgumentException ex) {
+            // Unknown record type or invalid host name
+            System.err.println("Invalid batch line: " + line);
+            return null;
+        }
+    }
+
+    private void write(Lookup lookup, Set<ResourceRecord> results, Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null)
+            error = error.getCause();
+        if (results == null)
+            results = Collections.emptySet();
+
+        if (!ndjson) {
+            DNSLookupService.printResults(out, lookup.node.getHostName(), lookup.getType(), results);
+            return;
+        }
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"name\":");
+        appendString(json, lookup.node.getHostName());
+        json.append(",\"type\":\"").append(lookup.getType()).append("\",\"status\":\"");
+        json.append(error == null ? "ok" : error instanceof TimeoutTwiceException ? "timeout" : "error");
+        json.append("\",\"answers\":[");
+        boolean first = true;
+        for (ResourceRecord record : results) {
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append('{');
+            // Answers of both address types are told apart by their own type
+            if (lookup.dualStack)
+                json.append("\"type\":\"").append(record.getType()).append("\",");
+            json.append("\"ttl\":").append(record.getTTL()).append(",\"data\":");
+            appendString(json, record.getTextResult());
+            json.append('}');
+        }
+        json.append("]}");
+        out.println(json);
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+
+    // A line of the input: a node, or a host name whose A and AAAA records are looked up together.
+    private static final class Lookup {
+        private final DNSNode node;
+        private final boolean dualStack;
+
+        private Lookup(DNSNode node, boolean dualStack) {
+            this.node = node;
+            this.dualStack = dualStack;
+        }
+
+        private String getType() {
+            return dualStack ? DUAL_STACK : node.getType().toString();
+        }
+    }
+
+    // A lookup that completed, with its results or the error that ended it.
+    private static final class Completed {
+        private final Lookup lookup;
+        private final Set<ResourceRecord> results;
+        private final Throwable error;
+
+        private Completed(Lookup lookup, Set<ResourceRecord> results, Throwable error) {
+            this.lookup = lookup;
+            this.results = results;
+            this.error = error;
+        }
+    }
+}
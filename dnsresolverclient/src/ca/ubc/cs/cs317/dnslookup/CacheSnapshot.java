@@ -0,0 +1,167 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Saves the contents of a DNS cache to a file, and loads them back, so that a restarted
+ * resolver does not start with an empty cache.
+ *
+ * A snapshot is a short header (a magic number and a version) followed by blocks of records.
+ * Each block starts with its length and the number of records it holds, and records are written
+ * in the binary form of ResourceRecord, with their absolute expiration time. Records that have
+ * already expired when a snapshot is loaded are dropped. Snapshots are loaded by mapping large
+ * windows of the file into memory and decoding records straight from them, one block per task
+ * of the common fork-join pool. They are written to a temporary file first, which then replaces
+ * the previous snapshot.
+ *
+ * Records kept in the cache's off-heap tier are not included in snapshots.
+ */
+public final class CacheSnapshot {
+
+    private static final int MAGIC = 0x444e5343;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int BLOCK_HEADER = 8;
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final long WINDOW_SIZE = 1 << 28;
+
+    private CacheSnapshot() {
+    }
+
+    /** Writes all records currently in the cache to a snapshot file, replacing any previous
+     * snapshot.
+     *
+     * @param cache Cache whose records are saved.
+     * @param path  File where the snapshot is written.
+     * @return The number of records written.
+     * @throws IOException If the snapshot could not be written.
+     */
+    public static long save(DNSCache cache, Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        long[] count = new long[1];
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION).flip());
+
+            ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            int[] blockCount = new int[1];
+            block.position(BLOCK_HEADER);
+            try {
+                cache.forEachCachedRecord(record -> {
+                    int size = record.serializedSize();
+                    if (size > BLOCK_SIZE - BLOCK_HEADER)
+                        return;
+                    if (size > block.remaining()) {
+                        writeBlock(channel, block, blockCount[0]);
+                        blockCount[0] = 0;
+                    }
+                    record.writeTo(block);
+                    blockCount[0]++;
+                    count[0]++;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writeBlock(channel, block, blockCount[0]);
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    // Writes the records in a block, if any, and prepares the block for the next records.
+    private static void writeBlock(FileChannel channel, ByteBuffer block, int count) {
+        if (count > 0) {
+            block.putInt(0, block.position()).putInt(4, count).flip();
+            try {
+                writeFully(channel, block);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        block.clear().position(BLOCK_HEADER);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /** Adds the records of a snapshot file to the cache. Records that have already expired are
+     * skipped.
+     *
+     * @param cache Cache where the records are added.
+     * @param path  Snapshot file.
+     * @return The number of records added to the cache.
+     * @throws IOException If the file could not be read or is not a valid snapshot.
+     */
+    public static long load(DNSCache cache, Path path) throws IOException {
+        long loaded = 0;
+        long now = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining() && channel.read(header) >= 0)
+                ;
+            if (header.hasRemaining() || header.getInt(0) != MAGIC)
+                throw new IOException("Not a cache snapshot: " + path);
+            if (header.getInt(4) != VERSION)
+                throw new IOException("Unsupported cache snapshot version: " + header.getInt(4));
+
+            long offset = HEADER_LENGTH;
+            while (offset < size) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(WINDOW_SIZE, size - offset));
+                // Only whole blocks are decoded; a block crossing the end of the window is
+                // decoded from the next window.
+                List<Integer> blocks = new ArrayList<>();
+                int position = 0;
+                while (window.capacity() - position >= BLOCK_HEADER) {
+                    int length = window.getInt(position);
+                    if (length < BLOCK_HEADER || length > BLOCK_SIZE)
+                        throw new IOException("Corrupted cache snapshot at offset " + (offset + position));
+                    if (length > window.capacity() - position)
+                        break;
+                    blocks.add(position);
+                    position += length;
+                }
+                if (position == 0)
+                    throw new IOException("Truncated cache snapshot");
+
+                // Blocks are independent, and the cache is thread-safe, so they are decoded in parallel
+                try {
+                    loaded += blocks.parallelStream().mapToLong(block -> loadBlock(cache, window, block, now)).sum();
+                } catch (RuntimeException e) {
+                    throw new IOException("Corrupted cache snapshot", e);
+                }
+                offset += position;
+            }
+        }
+        return loaded;
+    }
+
+    // Adds the valid records of the block at a position of the window to the cache.
+    private static long loadBlock(DNSCache cache, ByteBuffer window, int position, long now) {
+        ByteBuffer block = window.slice(position, window.getInt(position));
+        int count = block.getInt(4);
+        block.position(BLOCK_HEADER);
+        long loaded = 0;
+        for (int i = 0; i < count; i++) {
+            ResourceRecord record = ResourceRecord.readFrom(block);
+            if (record.getExpirationTime() > now) {
+                cache.addResult(record);
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+}
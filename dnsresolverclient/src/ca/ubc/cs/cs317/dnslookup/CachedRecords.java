@@ -0,0 +1,176 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/** Immutable set of resource records cached for a single node. Instances are never modified
+ * after construction: adding a record produces a new instance, which is then swapped into the
+ * cache. This allows readers to use a set without taking any lock, while writers replace it
+ * atomically. The earliest expiration time among all records is kept so that readers can tell,
+ * with a single comparison, whether the set still contains only valid records.
+ *
+ * The only mutable state is the number of lookups that found the set and the time its node was
+ * last refreshed, used by the cache to decide which nodes to refresh before they expire. Both
+ * start over when a record is added, i.e., when the node was just resolved.
+ */
+final class CachedRecords {
+
+    // Approximate cost of the map entry, this object and its immutable set view.
+    private static final int NODE_OVERHEAD = 32 + 56 + 48;
+
+    private static final AtomicIntegerFieldUpdater<CachedRecords> HITS =
+            AtomicIntegerFieldUpdater.newUpdater(CachedRecords.class, "hits");
+    private static final AtomicLongFieldUpdater<CachedRecords> REFRESH_TIME =
+            AtomicLongFieldUpdater.newUpdater(CachedRecords.class, "refreshTime");
+
+    private final ResourceRecord[] records;
+    private final Set<ResourceRecord> view;
+    private final long earliestExpiration;
+    private final long estimatedBytes;
+    private final long storedTime;
+    private volatile int hits;
+    private volatile long refreshTime;
+
+    private CachedRecords(ResourceRecord[] records, long storedTime) {
+        this.records = records;
+        this.storedTime = storedTime;
+        this.view = Set.of(records);
+        long earliest = Long.MAX_VALUE;
+        long bytes = NODE_OVERHEAD + 16 + 4L * records.length;
+        for (ResourceRecord record : records) {
+            earliest = Math.min(earliest, record.getExpirationTime());
+            bytes += record.estimatedSize();
+        }
+        this.earliestExpiration = earliest;
+        this.estimatedBytes = bytes;
+    }
+
+    static CachedRecords of(ResourceRecord record) {
+        return new CachedRecords(new ResourceRecord[] { record }, System.currentTimeMillis());
+    }
+
+    /** Returns a set containing the records in this set with the specified record added. If an
+     * equivalent record is already present, it is replaced only if the new record expires after
+     * it. Expired records are left in place; they are removed by the cache's expiry wheel.
+     *
+     * @param record Record to be added.
+     * @return A set with the record added, or this same instance if nothing changed.
+     */
+    CachedRecords with(ResourceRecord record) {
+        for (int i = 0; i < records.length; i++) {
+            if (records[i].equals(record)) {
+                if (!records[i].expiresBefore(record))
+                    return this;
+                ResourceRecord[] updated = records.clone();
+                updated[i] = record;
+                return new CachedRecords(updated, System.currentTimeMillis());
+            }
+        }
+        ResourceRecord[] updated = Arrays.copyOf(records, records.length + 1);
+        updated[records.length] = record;
+        return new CachedRecords(updated, System.currentTimeMillis());
+    }
+
+    /** Returns a set containing the records in this set except for the specified record
+     * instance. Equivalent records that are different instances are not removed. The hit count
+     * and refresh time are kept.
+     *
+     * @param record Record to be removed.
+     * @return A set without the record, this same instance if the record is not in this set, or
+     * null if the resulting set would be empty.
+     */
+    CachedRecords without(ResourceRecord record) {
+        for (int i = 0; i < records.length; i++) {
+            if (records[i] == record) {
+                if (records.length == 1)
+                    return null;
+                ResourceRecord[] updated = new ResourceRecord[records.length - 1];
+                System.arraycopy(records, 0, updated, 0, i);
+                System.arraycopy(records, i + 1, updated, i, records.length - i - 1);
+                CachedRecords remaining = new CachedRecords(updated, storedTime);
+                remaining.hits = hits;
+                remaining.refreshTime = refreshTime;
+                return remaining;
+            }
+        }
+        return this;
+    }
+
+    /** Returns true if this set contains the specified record instance, as opposed to an
+     * equivalent record.
+     */
+    boolean contains(ResourceRecord record) {
+        for (ResourceRecord existing : records)
+            if (existing == record)
+                return true;
+        return false;
+    }
+
+    /** Returns the record of this set equivalent to the specified one, which may be the same
+     * instance or one that replaced it, or null if there is none.
+     */
+    ResourceRecord find(ResourceRecord record) {
+        for (ResourceRecord existing : records)
+            if (existing.equals(record))
+                return existing;
+        return null;
+    }
+
+    int size() {
+        return records.length;
+    }
+
+    /** Approximate number of bytes of heap used by these records and their cache entry.
+     */
+    long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /** Counts a lookup that found this set.
+     *
+     * @return The number of lookups that found this set so far.
+     */
+    int recordHit() {
+        return HITS.incrementAndGet(this);
+    }
+
+    /** Time at which the records were stored, i.e., when the last record was added.
+     */
+    long getStoredTime() {
+        return storedTime;
+    }
+
+    long getEarliestExpiration() {
+        return earliestExpiration;
+    }
+
+    /** Claims the refresh of this set's node, unless another refresh was claimed recently.
+     *
+     * @param now         Current time, in milliseconds since the epoch.
+     * @param retryMillis Time after which a previous refresh that did not replace this set is
+     *                    considered to have failed.
+     * @return True if the caller should refresh the node.
+     */
+    boolean claimRefresh(long now, long retryMillis) {
+        long previous = refreshTime;
+        return (previous == 0 || now - previous >= retryMillis) && REFRESH_TIME.compareAndSet(this, previous, now);
+    }
+
+    /** Returns the records in this set that are still valid at the specified time. If no record
+     * has expired yet, which is the common case, the shared immutable view is returned and
+     * nothing is allocated.
+     *
+     * @param now Current time, in milliseconds since the epoch.
+     * @return An unmodifiable, potentially empty, set of valid records.
+     */
+    Set<ResourceRecord> liveRecords(long now) {
+        if (earliestExpiration > now)
+            return view;
+        Set<ResourceRecord> live = new HashSet<>();
+        for (ResourceRecord record : records)
+            if (record.getExpirationTime() > now)
+                live.add(record);
+        return Collections.unmodifiableSet(live);
+    }
+}
@@ -0,0 +1,109 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/** A chain of CNAME records found in the cache, starting at a queried name. Each link of a chain
+ * is cached on its own, under the alias it belongs to, as received from the servers: a response
+ * with a whole chain and the records of its canonical name caches every link, and a response
+ * with a single CNAME caches that link only.
+ *
+ * Following the chain in the cache either reaches the records of the queried type at the end of
+ * the chain, or stops at a name with no cached CNAME record (the missing tail), which is the only
+ * name that still has to be resolved. The results of an alias are the records at the end of its
+ * chain, expiring as soon as any link of the chain does, so that the effective TTL is the
+ * minimum across the chain.
+ */
+final class CnameChain {
+
+    // Chains longer than this are assumed to be loops
+    private static final int MAX_LENGTH = 16;
+
+    private final int length;
+    private final long expirationTime;
+    private final DNSNode tail;
+    private final Set<ResourceRecord> results;
+
+    private CnameChain(int length, long expirationTime, DNSNode tail, Set<ResourceRecord> results) {
+        this.length = length;
+        this.expirationTime = expirationTime;
+        this.tail = tail;
+        this.results = results;
+    }
+
+    /** Follows the CNAME records cached for the name of a node. The records of the node itself
+     * are not looked up, as callers have done so already. The links are looked up without
+     * counting them as cache hits or misses.
+     *
+     * @param cache Cache where the links are looked up.
+     * @param node  Host name and record type being resolved.
+     * @return The chain starting at the node's name, of length zero if no CNAME record is cached
+     * for the name or if CNAME records are the ones being resolved.
+     */
+    static CnameChain follow(DNSCache cache, DNSNode node) {
+        if (node.getType() == RecordType.CNAME)
+            return new CnameChain(0, Long.MAX_VALUE, null, Collections.emptySet());
+
+        long expirationTime = Long.MAX_VALUE;
+        DomainName name = node.getName();
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            if (length > 0) {
+                DNSNode target = new DNSNode(name, node.getType());
+                Set<ResourceRecord> results = cache.peekCachedResults(target);
+                if (!results.isEmpty())
+                    return new CnameChain(length, expirationTime, null, results);
+                if (cache.isNegativelyCached(target))
+                    return new CnameChain(length, expirationTime, null, Collections.emptySet());
+            }
+            Set<ResourceRecord> links = cache.peekCachedResults(new DNSNode(name, RecordType.CNAME));
+            if (links.isEmpty())
+                return new CnameChain(length, expirationTime, length > 0 ? new DNSNode(name, node.getType()) : null,
+                        Collections.emptySet());
+            // An alias has a single CNAME record (RFC 2181, section 10.1)
+            ResourceRecord link = links.iterator().next();
+            expirationTime = Math.min(expirationTime, link.getExpirationTime());
+            name = link.getNameResult();
+        }
+        // A loop: there is nothing to resolve
+        return new CnameChain(MAX_LENGTH, expirationTime, null, Collections.emptySet());
+    }
+
+    /** Returns the number of CNAME records in the chain, zero if the name is not known to be an
+     * alias.
+     */
+    int getLength() {
+        return length;
+    }
+
+    /** Returns the node at the end of the chain that still has to be resolved, or null if the
+     * chain is complete or cannot be followed (it is a loop, or ends at a name known to have no
+     * records of the queried type).
+     */
+    DNSNode getMissingTail() {
+        return tail;
+    }
+
+    /** Returns the results of an alias, found at the end of the chain in the cache.
+     *
+     * @param node Node the chain starts at.
+     * @return Copies of the records at the end of the chain for the node, empty if the chain is
+     * not complete.
+     */
+    Set<ResourceRecord> getResults(DNSNode node) {
+        return getResults(node, results);
+    }
+
+    /** Returns the results of an alias, given the results of the chain's missing tail.
+     *
+     * @param node        Node the chain starts at.
+     * @param tailResults Records found for the missing tail.
+     * @return Copies of the records for the node, expiring no later than the chain.
+     */
+    Set<ResourceRecord> getResults(DNSNode node, Set<ResourceRecord> tailResults) {
+        Set<ResourceRecord> copies = new LinkedHashSet<>();
+        for (ResourceRecord record : tailResults)
+            copies.add(record.withNode(node, expirationTime));
+        return copies;
+    }
+}
@@ -1,18 +1,97 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
  * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
  * the user.
+ *
+ * The cache is safe to use from multiple threads. Nodes are spread over a fixed number of
+ * shards, each one a concurrent hash map, using a hash of the node. The set of records of each
+ * node is immutable and replaced as a whole when a record is added, so reads never take a lock
+ * and never write to the map.
+ *
+ * Expired records are removed in the background by a timing wheel keyed on each record's
+ * expiration time, so entries for names that are never queried again do not stay in memory.
+ *
+ * The cache may be limited both in number of records and in estimated heap size. Once a limit
+ * is exceeded, records are evicted starting with those closest to their expiration, so that
+ * long-lived records (e.g., NS and glue records) are kept. Among a sample of the records that
+ * expire the soonest, the one whose node is the least popular, according to a TinyLFU frequency
+ * sketch of recent lookups, is evicted first.
+ *
+ * Optionally, evicted records are moved to a second tier kept outside of the Java heap, and
+ * moved back to the cache when they are looked up again, so a large cache can be kept without
+ * increasing garbage collection pauses. Records in that tier are not listed by forEachNode or
+ * forEachRecord.
+ *
+ * Negative results (RFC 2308) are kept apart from records, for the negative TTL given by the
+ * server: names that do not exist (NXDOMAIN), for any record type, and nodes whose name exists
+ * without records of the node's type (NODATA). They are only checked once no record is cached
+ * for a node, and are removed lazily, when found expired or when there are too many of them.
+ *
+ * Once a refresher is set, popular nodes are refreshed before they expire: a node found by at
+ * least PREFETCH_MIN_HITS lookups during the lifetime of its records is handed to the refresher
+ * by the first lookup in the last tenth of that lifetime, so that its next lookup does not wait
+ * for a resolution (prefetching). Optionally, expired records are also kept for a while and
+ * served, with a short TTL, when no valid record is cached for a node, while the refresher looks
+ * the node up again (serve-stale, RFC 8767).
  */
 public class DNSCache {
 
+    private static final int SHARD_BITS = 6;
+    private static final int SHARD_COUNT = 1 << SHARD_BITS;
+    private static final int EVICTION_SAMPLE = 16;
+    private static final int MAX_NEGATIVE_RESULTS = 100_000;
+    private static final int PREFETCH_MIN_HITS = 2;
+    private static final int PREFETCH_WINDOW_DIVISOR = 10;
+    private static final long REFRESH_RETRY_MILLIS = 30_000;
+    private static final long STALE_TTL = 30;
+    private static final int MAX_STALE_NODES = 100_000;
+
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private final Map<DNSNode, CachedRecords>[] shards;
+    private final ExpiryWheel expiryWheel = new ExpiryWheel(this::expire);
+    private final LongAdder expiredCount = new LongAdder();
+    private final LongAdder evictedCount = new LongAdder();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong estimatedBytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // Expiration times of negative results
+    private final Map<DomainName, Long> nonexistentNames = new ConcurrentHashMap<>();
+    private final Map<DNSNode, Long> emptyNodes = new ConcurrentHashMap<>();
+    private final LongAdder negativeHitCount = new LongAdder();
+    // Expired records, kept for serve-stale
+    private final Map<DNSNode, CachedRecords> staleRecords = new ConcurrentHashMap<>();
+    private final LongAdder prefetchCount = new LongAdder();
+    private final LongAdder staleHitCount = new LongAdder();
+
+    private volatile long maximumRecords = Long.MAX_VALUE;
+    private volatile long maximumBytes = Long.MAX_VALUE;
+    private volatile FrequencySketch sketch;
+    private volatile OffHeapTier offHeapTier;
+    private volatile Consumer<DNSNode> refresher;
+    private volatile long maximumStaleMillis;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private DNSCache() {
+        shards = new Map[SHARD_COUNT];
+        for (int i = 0; i < SHARD_COUNT; i++)
+            shards[i] = new ConcurrentHashMap<>();
+        expiryWheel.start();
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -23,21 +102,132 @@ public class DNSCache {
         return instance;
     }
 
+    /** Returns the shard responsible for a node. The top bits of a multiplicative hash are used,
+     * so that the low bits used by the hash map inside each shard stay evenly distributed.
+     */
+    private Map<DNSNode, CachedRecords> shardFor(DNSNode node) {
+        return shards[(node.hashCode() * 0x9E3779B9) >>> (32 - SHARD_BITS)];
+    }
+
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are not included
+     * in the returned set, unless serve-stale is enabled and no valid result is cached, in which
+     * case copies of the expired results with a short TTL are returned. This method does not
+     * perform the query itself, it only returns previously cached results, but it may hand the
+     * node to the refresher.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
-     * @return A potentially empty set of resources associated to the query.
+     * @return A potentially empty, unmodifiable set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        FrequencySketch sketch = this.sketch;
+        if (sketch != null)
+            sketch.increment(node.hashCode());
+
+        long now = System.currentTimeMillis();
+        CachedRecords results = shardFor(node).get(node);
+        Set<ResourceRecord> live = results == null ? Collections.emptySet() : results.liveRecords(now);
+        if (!live.isEmpty() && refresher != null)
+            prefetchIfPopular(node, results, now);
+        OffHeapTier offHeapTier = this.offHeapTier;
+        if (live.isEmpty() && offHeapTier != null)
+            live = promote(node, offHeapTier);
+        if (live.isEmpty() && maximumStaleMillis > 0)
+            live = serveStale(node, now);
+        if (live.isEmpty())
+            missCount.increment();
+        else
+            hitCount.increment();
+        return live;
+    }
+
+    /** Returns the records cached for a node, like getCachedResults, but without counting the
+     * lookup: the hit and miss counts, the frequency sketch and the prefetch hit counts are left
+     * unchanged, and stale records are not served. Used for lookups made by the resolver itself
+     * (e.g., following a CNAME chain), which should not make records look more popular than the
+     * user's own lookups did.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty, unmodifiable set of resources associated to the query.
+     */
+    public Set<ResourceRecord> peekCachedResults(DNSNode node) {
+        CachedRecords results = shardFor(node).get(node);
+        Set<ResourceRecord> live = results == null ? Collections.emptySet()
+                : results.liveRecords(System.currentTimeMillis());
+        OffHeapTier offHeapTier = this.offHeapTier;
+        if (live.isEmpty() && offHeapTier != null)
+            live = promote(node, offHeapTier);
+        return live;
+    }
+
+    // Hands a node to the refresher if it is popular and its records are about to expire.
+    private void prefetchIfPopular(DNSNode node, CachedRecords results, long now) {
+        int hits = results.recordHit();
+        long remaining = results.getEarliestExpiration() - now;
+        long lifetime = results.getEarliestExpiration() - results.getStoredTime();
+        if (hits >= PREFETCH_MIN_HITS && remaining * PREFETCH_WINDOW_DIVISOR <= lifetime
+                && results.claimRefresh(now, REFRESH_RETRY_MILLIS)) {
+            prefetchCount.increment();
+            refresh(node);
+        }
+    }
+
+    // Returns copies of the expired records of a node that are still within the serve-stale
+    // period, with a short TTL, and asks for the node to be refreshed.
+    private Set<ResourceRecord> serveStale(DNSNode node, long now) {
+        CachedRecords stale = staleRecords.get(node);
+        if (stale == null)
             return Collections.emptySet();
+        Set<ResourceRecord> servable = stale.liveRecords(now - maximumStaleMillis);
+        if (servable.isEmpty()) {
+            staleRecords.remove(node, stale);
+            return servable;
+        }
+        staleHitCount.increment();
+        if (stale.claimRefresh(now, REFRESH_RETRY_MILLIS))
+            refresh(node);
+        Set<ResourceRecord> copies = new HashSet<>();
+        for (ResourceRecord record : servable)
+            copies.add(record.withTTL(STALE_TTL));
+        return Collections.unmodifiableSet(copies);
+    }
+
+    private void refresh(DNSNode node) {
+        Consumer<DNSNode> refresher = this.refresher;
+        if (refresher != null)
+            refresher.accept(node);
+    }
+
+    /** Sets the action used to look up a node again in the background, when a popular node is
+     * about to expire or a stale node is served. It must not block the caller. Without a
+     * refresher, nodes are neither prefetched nor refreshed when served stale.
+     *
+     * @param refresher Action starting a new lookup of a node, or null to disable refreshes.
+     */
+    public void setRefresher(Consumer<DNSNode> refresher) {
+        this.refresher = refresher;
+    }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+    /** Enables or disables serve-stale. While enabled, records that expire are kept for the
+     * specified time, and served when no valid record is cached for their node. Disabling it
+     * discards the expired records kept so far.
+     *
+     * @param maximumStaleSeconds Number of seconds records are kept after they expire, or 0 to
+     *                            disable serve-stale.
+     */
+    public void setServeStale(long maximumStaleSeconds) {
+        this.maximumStaleMillis = maximumStaleSeconds * 1000;
+        if (maximumStaleSeconds == 0)
+            staleRecords.clear();
+    }
+
+    // Moves the records of a node from the off-heap tier back to the cache. The records are
+    // returned directly, as adding them may already have evicted them again from a full cache.
+    private Set<ResourceRecord> promote(DNSNode node, OffHeapTier offHeapTier) {
+        List<ResourceRecord> promoted = offHeapTier.take(node);
+        for (ResourceRecord record : promoted)
+            addResult(record);
+        return Set.copyOf(promoted);
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -51,42 +241,362 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        DNSNode key = record.getNode();
+        shardFor(key).compute(key, (node, results) -> {
+            CachedRecords updated = results == null ? CachedRecords.of(record) : results.with(record);
+            if (updated != results && updated.contains(record)) {
+                account(results, updated);
+                // Each cached record has a single entry in the wheel: a record replacing an
+                // equivalent one takes over the entry of the record it replaced (see expire), so
+                // records received again and again do not pile up in the wheel
+                if (results == null || updated.size() > results.size())
+                    expiryWheel.schedule(record);
+            }
+            return updated;
+        });
+        if (!staleRecords.isEmpty())
+            staleRecords.remove(key);
+        evictIfNeeded();
+    }
+
+    /** Records that a query has no results, as stated by a negative response.
+     *
+     * @param node      Host name and record type of the query.
+     * @param nameError If true, the name does not exist (NXDOMAIN), so queries for the name have
+     *                  no results whatever their type; otherwise, only the node's record type has
+     *                  no records (NODATA).
+     * @param ttl       Number of seconds the negative result may be cached.
+     */
+    public void addNegativeResult(DNSNode node, boolean nameError, long ttl) {
+        if (ttl <= 0)
+            return;
+        long expirationTime = System.currentTimeMillis() + ttl * 1000;
+        if (nonexistentNames.size() + emptyNodes.size() >= MAX_NEGATIVE_RESULTS)
+            purgeNegativeResults();
+        if (nameError)
+            nonexistentNames.merge(node.getName(), expirationTime, Math::max);
+        else
+            emptyNodes.merge(node, expirationTime, Math::max);
+        // Records that no longer exist are not served stale
+        if (!staleRecords.isEmpty()) {
+            if (nameError)
+                for (RecordType type : RecordType.values())
+                    staleRecords.remove(new DNSNode(node.getName(), type));
+            else
+                staleRecords.remove(node);
+        }
+    }
+
+    /** Returns true if a query is known to have no results, i.e., a negative result that has
+     * not expired yet is cached for the node, or for its name if the name does not exist.
+     * Resolvers check this after getCachedResults returned an empty set, so that such queries
+     * are answered without any query to a server.
+     *
+     * @param node DNS query (host name and record type).
+     * @return True if the query has a valid negative result in the cache.
+     */
+    public boolean isNegativelyCached(DNSNode node) {
+        if (peekNegativelyCached(node)) {
+            negativeHitCount.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /** Same as isNegativelyCached, but the lookup is not counted as a negative hit. Used by
+     * resolvers to check whether a lookup would be answered by the cache before making it.
+     *
+     * @param node DNS query (host name and record type).
+     * @return True if the query has a valid negative result in the cache.
+     */
+    public boolean peekNegativelyCached(DNSNode node) {
+        long now = System.currentTimeMillis();
+        return isValid(nonexistentNames, node.getName(), now) || isValid(emptyNodes, node, now);
+    }
+
+    // Returns true if a negative result has not expired, removing it if it has.
+    private static <K> boolean isValid(Map<K, Long> negativeResults, K key, long now) {
+        Long expirationTime = negativeResults.get(key);
+        if (expirationTime == null)
+            return false;
+        if (expirationTime > now)
+            return true;
+        negativeResults.remove(key, expirationTime);
+        return false;
+    }
+
+    // Removes expired negative results, then arbitrary ones if there are still too many.
+    private void purgeNegativeResults() {
+        long now = System.currentTimeMillis();
+        nonexistentNames.values().removeIf(expirationTime -> expirationTime <= now);
+        emptyNodes.values().removeIf(expirationTime -> expirationTime <= now);
+        Iterator<DNSNode> nodes = emptyNodes.keySet().iterator();
+        while (nonexistentNames.size() + emptyNodes.size() >= MAX_NEGATIVE_RESULTS && nodes.hasNext()) {
+            nodes.next();
+            nodes.remove();
+        }
+        Iterator<DomainName> names = nonexistentNames.keySet().iterator();
+        while (nonexistentNames.size() + emptyNodes.size() >= MAX_NEGATIVE_RESULTS && names.hasNext()) {
+            names.next();
+            names.remove();
+        }
+    }
+
+    /** Limits the size of the cache. Once either limit is exceeded, records are evicted before
+     * they expire until the cache is within both limits again. A value of Long.MAX_VALUE means
+     * there is no limit.
+     *
+     * @param maximumRecords Maximum number of records kept in the cache.
+     * @param maximumBytes   Maximum estimated heap size, in bytes, of the records in the cache.
+     */
+    public void setMaximumSize(long maximumRecords, long maximumBytes) {
+        this.maximumRecords = maximumRecords;
+        this.maximumBytes = maximumBytes;
+        boolean bounded = maximumRecords != Long.MAX_VALUE || maximumBytes != Long.MAX_VALUE;
+        this.sketch = bounded ? new FrequencySketch(Math.min(maximumRecords, maximumBytes / 128)) : null;
+        evictIfNeeded();
+    }
+
+    /** Sets up a second tier, outside of the Java heap, where records evicted because of the
+     * cache's size limits are kept until they are needed again. Any previous tier and its
+     * records are discarded.
+     *
+     * @param capacity Maximum number of bytes used by the tier, or 0 to remove the tier.
+     * @param file     File to be memory-mapped to hold the tier, or null to use direct memory.
+     * @throws IOException If the file could not be created or mapped.
+     */
+    public void setOffHeapTier(long capacity, Path file) throws IOException {
+        OffHeapTier previous;
+        evictionLock.lock();
+        try {
+            previous = offHeapTier;
+            offHeapTier = capacity > 0 ? new OffHeapTier(capacity, file) : null;
+        } finally {
+            evictionLock.unlock();
+        }
+        if (previous != null)
+            previous.close();
+    }
+
+    // Updates the size counters after the records of a node are replaced, inside the map's
+    // compute function so that each change is accounted for exactly once.
+    private void account(CachedRecords before, CachedRecords after) {
+        int records = (after == null ? 0 : after.size()) - (before == null ? 0 : before.size());
+        long bytes = (after == null ? 0 : after.estimatedBytes()) - (before == null ? 0 : before.estimatedBytes());
+        recordCount.addAndGet(records);
+        estimatedBytes.addAndGet(bytes);
+    }
+
+    private boolean isOverLimit() {
+        return recordCount.get() > maximumRecords || estimatedBytes.get() > maximumBytes;
+    }
+
+    /** Evicts records until the cache is within its limits. Candidates are taken from the expiry
+     * wheel among the records that expire the soonest; the one whose node is the least popular
+     * is evicted, and the others are put back in the wheel. Only one thread evicts at a time;
+     * other writers do not wait for it.
+     */
+    private void evictIfNeeded() {
+        if (!isOverLimit() || !evictionLock.tryLock())
+            return;
+        try {
+            FrequencySketch sketch = this.sketch;
+            while (isOverLimit()) {
+                List<ResourceRecord> candidates = expiryWheel.pollEarliest(EVICTION_SAMPLE);
+                if (candidates.isEmpty())
+                    break;
+
+                ResourceRecord victim = null;
+                int victimFrequency = Integer.MAX_VALUE;
+                List<ResourceRecord> live = new ArrayList<>(candidates.size());
+                for (ResourceRecord scheduled : candidates) {
+                    // Records removed since they were scheduled are dropped here, and replaced
+                    // records stand for the record that replaced them.
+                    ResourceRecord candidate = cachedInstance(scheduled);
+                    if (candidate == null || live.contains(candidate))
+                        continue;
+                    DNSNode node = candidate.getNode();
+                    live.add(candidate);
+                    int frequency = sketch == null ? 0 : sketch.frequency(node.hashCode());
+                    if (frequency < victimFrequency) {
+                        victim = candidate;
+                        victimFrequency = frequency;
+                    }
+                }
+                if (victim != null && remove(victim)) {
+                    evictedCount.increment();
+                    if (offHeapTier != null)
+                        offHeapTier.spill(victim);
+                }
+                for (ResourceRecord candidate : live)
+                    if (candidate != victim)
+                        expiryWheel.schedule(candidate);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Removes a specific record instance from the cache, returning true if it was cached.
+    private boolean remove(ResourceRecord record) {
+        boolean[] removed = new boolean[1];
+        DNSNode key = record.getNode();
+        shardFor(key).computeIfPresent(key, (node, results) -> {
+            CachedRecords remaining = results.without(record);
+            if (remaining != results) {
+                account(results, remaining);
+                removed[0] = true;
+            }
+            return remaining;
+        });
+        return removed[0];
+    }
+
+    // Returns the cached record equivalent to a record taken from the wheel: the record itself,
+    // the record that replaced it, or null if neither is cached anymore.
+    private ResourceRecord cachedInstance(ResourceRecord scheduled) {
+        CachedRecords results = shardFor(scheduled.getNode()).get(scheduled.getNode());
+        return results == null ? null : results.find(scheduled);
+    }
+
+    /** Called by the expiry wheel once a record's expiration time has passed. If the record was
+     * replaced by an equivalent record with a later expiration time, the wheel entry is handed
+     * over to the replacement, which is scheduled in turn; otherwise the record is removed. The
+     * node itself is removed once it has no records.
+     *
+     * @param scheduled Record whose expiration time has passed.
+     */
+    private void expire(ResourceRecord scheduled) {
+        ResourceRecord record = cachedInstance(scheduled);
+        if (record == null)
+            return;
+        if (record.isStillValid()) {
+            expiryWheel.schedule(record);
+            return;
+        }
+        if (remove(record)) {
+            expiredCount.increment();
+            if (maximumStaleMillis > 0)
+                keepStale(record);
+        }
+    }
+
+    // Keeps an expired record for serve-stale, unless a valid record was cached for its node in
+    // the meantime.
+    private void keepStale(ResourceRecord record) {
+        DNSNode key = record.getNode();
+        if (shardFor(key).containsKey(key))
+            return;
+        if (staleRecords.size() >= MAX_STALE_NODES)
+            purgeStaleRecords();
+        staleRecords.compute(key, (node, stale) -> stale == null ? CachedRecords.of(record) : stale.with(record));
+    }
+
+    // Removes the stale records that can no longer be served, then arbitrary ones if there are
+    // still too many.
+    private void purgeStaleRecords() {
+        long oldest = System.currentTimeMillis() - maximumStaleMillis;
+        staleRecords.values().removeIf(stale -> stale.liveRecords(oldest).isEmpty());
+        Iterator<DNSNode> nodes = staleRecords.keySet().iterator();
+        while (staleRecords.size() >= MAX_STALE_NODES && nodes.hasNext()) {
+            nodes.next();
+            nodes.remove();
         }
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Returns the number of records that have been removed from the cache by the background
+     * expiry process because their TTL had passed.
+     *
+     * @return The number of expired records removed so far.
+     */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+
+    /** Returns the number of records that have been evicted from the cache before their TTL had
+     * passed, to keep the cache within its size limits.
+     *
+     * @return The number of records evicted so far.
+     */
+    public long getEvictedCount() {
+        return evictedCount.sum();
+    }
+
+    /** Returns a snapshot of the cache's statistics, including its hit rate, the number of
+     * expired and evicted records, and its current size.
+     *
+     * @return The current statistics of the cache.
+     */
+    public DNSCacheStats getStats() {
+        OffHeapTier offHeapTier = this.offHeapTier;
+        DNSCacheStats.Builder stats = new DNSCacheStats.Builder()
+                .hitCount(hitCount.sum())
+                .missCount(missCount.sum())
+                .expiredCount(expiredCount.sum())
+                .evictionCount(evictedCount.sum())
+                .recordCount(recordCount.get())
+                .estimatedBytes(estimatedBytes.get())
+                .maximumRecords(maximumRecords)
+                .maximumBytes(maximumBytes)
+                .negativeCount(nonexistentNames.size() + emptyNodes.size())
+                .negativeHitCount(negativeHitCount.sum())
+                .prefetchCount(prefetchCount.sum())
+                .staleNodeCount(staleRecords.size())
+                .staleHitCount(staleHitCount.sum());
+        if (offHeapTier != null)
+            stats.offHeapCapacity(offHeapTier.getCapacity())
+                    .offHeapNodeCount(offHeapTier.getEntryCount())
+                    .spilledCount(offHeapTier.getSpilledCount())
+                    .promotedCount(offHeapTier.getPromotedCount());
+        return stats.build();
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are skipped, and
+     * queries are visited in order.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        long now = System.currentTimeMillis();
+        for (Map.Entry<DNSNode, CachedRecords> entry : sortedEntries()) {
+            Set<ResourceRecord> records = entry.getValue().liveRecords(now);
+            if (!records.isEmpty())
+                consumer.accept(entry.getKey(), records);
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are skipped, and
+     * queries are visited in order.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
-        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<DNSNode, CachedRecords> entry : sortedEntries())
+            entry.getValue().liveRecords(now).forEach(record -> consumer.accept(entry.getKey(), record));
+    }
+
+    /** Performs an action for each valid record, in no particular order. Unlike forEachRecord,
+     * no snapshot of the entries is made, so this is suitable for very large caches.
+     *
+     * @param consumer Action to be performed for each record.
+     */
+    void forEachCachedRecord(Consumer<ResourceRecord> consumer) {
+        long now = System.currentTimeMillis();
+        for (Map<DNSNode, CachedRecords> shard : shards)
+            for (CachedRecords records : shard.values())
+                records.liveRecords(now).forEach(consumer);
+    }
+
+    // Weakly consistent snapshot of all entries, in node order, as the previous tree map had.
+    private List<Map.Entry<DNSNode, CachedRecords>> sortedEntries() {
+        List<Map.Entry<DNSNode, CachedRecords>> entries = new ArrayList<>();
+        for (Map<DNSNode, CachedRecords> shard : shards)
+            entries.addAll(shard.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+        return entries;
     }
 
 }
@@ -0,0 +1,271 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Snapshot of the statistics of a DNS cache at a specific point in time. A hit is a lookup for
+ * which at least one valid record was cached, and a miss is any other lookup. Misses answered by
+ * a negative result are also counted as negative hits.
+ */
+public class DNSCacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long expiredCount;
+    private final long evictionCount;
+    private final long recordCount;
+    private final long estimatedBytes;
+    private final long maximumRecords;
+    private final long maximumBytes;
+    private final long offHeapCapacity;
+    private final long offHeapNodeCount;
+    private final long spilledCount;
+    private final long promotedCount;
+    private final long negativeCount;
+    private final long negativeHitCount;
+    private final long prefetchCount;
+    private final long staleNodeCount;
+    private final long staleHitCount;
+
+    private DNSCacheStats(Builder builder) {
+        this.hitCount = builder.hitCount;
+        this.missCount = builder.missCount;
+        this.expiredCount = builder.expiredCount;
+        this.evictionCount = builder.evictionCount;
+        this.recordCount = builder.recordCount;
+        this.estimatedBytes = builder.estimatedBytes;
+        this.maximumRecords = builder.maximumRecords;
+        this.maximumBytes = builder.maximumBytes;
+        this.offHeapCapacity = builder.offHeapCapacity;
+        this.offHeapNodeCount = builder.offHeapNodeCount;
+        this.spilledCount = builder.spilledCount;
+        this.promotedCount = builder.promotedCount;
+        this.negativeCount = builder.negativeCount;
+        this.negativeHitCount = builder.negativeHitCount;
+        this.prefetchCount = builder.prefetchCount;
+        this.staleNodeCount = builder.staleNodeCount;
+        this.staleHitCount = builder.staleHitCount;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /** Ratio of lookups that found at least one valid record in the cache.
+     *
+     * @return The hit rate, between 0 and 1, or 0 if there were no lookups.
+     */
+    public double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    /** Number of records removed because their TTL had passed.
+     */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /** Number of records removed before their TTL had passed to keep the cache within its limits.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public long getMaximumRecords() {
+        return maximumRecords;
+    }
+
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    /** Capacity, in bytes, of the off-heap tier, or 0 if there is no such tier.
+     */
+    public long getOffHeapCapacity() {
+        return offHeapCapacity;
+    }
+
+    /** Number of nodes whose records are currently kept in the off-heap tier.
+     */
+    public long getOffHeapNodeCount() {
+        return offHeapNodeCount;
+    }
+
+    /** Number of evicted records moved to the off-heap tier.
+     */
+    public long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /** Number of records moved back from the off-heap tier on a lookup.
+     */
+    public long getPromotedCount() {
+        return promotedCount;
+    }
+
+    /** Number of negative results (names or nodes without records) currently cached, including
+     * expired ones not removed yet.
+     */
+    public long getNegativeCount() {
+        return negativeCount;
+    }
+
+    /** Number of lookups answered by a negative result.
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    /** Number of popular nodes refreshed before their records expired.
+     */
+    public long getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /** Number of nodes whose expired records are kept to be served stale.
+     */
+    public long getStaleNodeCount() {
+        return staleNodeCount;
+    }
+
+    /** Number of lookups answered with expired records (serve-stale). These are also hits.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d hitRate=%.3f expired=%d evicted=%d records=%d/%s bytes=%d/%s",
+                hitCount, missCount, getHitRate(), expiredCount, evictionCount,
+                recordCount, maximumRecords == Long.MAX_VALUE ? "unlimited" : maximumRecords,
+                estimatedBytes, maximumBytes == Long.MAX_VALUE ? "unlimited" : maximumBytes)
+                + String.format(" negative=%d negativeHits=%d prefetched=%d", negativeCount, negativeHitCount, prefetchCount)
+                + (staleNodeCount == 0 && staleHitCount == 0 ? "" : String.format(" staleNodes=%d staleHits=%d",
+                        staleNodeCount, staleHitCount))
+                + (offHeapCapacity == 0 ? "" : String.format(" offHeapNodes=%d offHeapBytes=%d spilled=%d promoted=%d",
+                        offHeapNodeCount, offHeapCapacity, spilledCount, promotedCount));
+    }
+
+    /** Builder of statistics snapshots, so that each counter is set by name. Counters that are
+     * not set are 0.
+     */
+    public static final class Builder {
+        private long hitCount;
+        private long missCount;
+        private long expiredCount;
+        private long evictionCount;
+        private long recordCount;
+        private long estimatedBytes;
+        private long maximumRecords;
+        private long maximumBytes;
+        private long offHeapCapacity;
+        private long offHeapNodeCount;
+        private long spilledCount;
+        private long promotedCount;
+        private long negativeCount;
+        private long negativeHitCount;
+        private long prefetchCount;
+        private long staleNodeCount;
+        private long staleHitCount;
+
+        public Builder hitCount(long hitCount) {
+            this.hitCount = hitCount;
+            return this;
+        }
+
+        public Builder missCount(long missCount) {
+            this.missCount = missCount;
+            return this;
+        }
+
+        public Builder expiredCount(long expiredCount) {
+            this.expiredCount = expiredCount;
+            return this;
+        }
+
+        public Builder evictionCount(long evictionCount) {
+            this.evictionCount = evictionCount;
+            return this;
+        }
+
+        public Builder recordCount(long recordCount) {
+            this.recordCount = recordCount;
+            return this;
+        }
+
+        public Builder estimatedBytes(long estimatedBytes) {
+            this.estimatedBytes = estimatedBytes;
+            return this;
+        }
+
+        public Builder maximumRecords(long maximumRecords) {
+            this.maximumRecords = maximumRecords;
+            return this;
+        }
+
+        public Builder maximumBytes(long maximumBytes) {
+            this.maximumBytes = maximumBytes;
+            return this;
+        }
+
+        public Builder offHeapCapacity(long offHeapCapacity) {
+            this.offHeapCapacity = offHeapCapacity;
+            return this;
+        }
+
+        public Builder offHeapNodeCount(long offHeapNodeCount) {
+            this.offHeapNodeCount = offHeapNodeCount;
+            return this;
+        }
+
+        public Builder spilledCount(long spilledCount) {
+            this.spilledCount = spilledCount;
+            return this;
+        }
+
+        public Builder promotedCount(long promotedCount) {
+            this.promotedCount = promotedCount;
+            return this;
+        }
+
+        public Builder negativeCount(long negativeCount) {
+            this.negativeCount = negativeCount;
+            return this;
+        }
+
+        public Builder negativeHitCount(long negativeHitCount) {
+            this.negativeHitCount = negativeHitCount;
+            return this;
+        }
+
+        public Builder prefetchCount(long prefetchCount) {
+            this.prefetchCount = prefetchCount;
+            return this;
+        }
+
+        public Builder staleNodeCount(long staleNodeCount) {
+            this.staleNodeCount = staleNodeCount;
+            return this;
+        }
+
+        public Builder staleHitCount(long staleHitCount) {
+            this.staleHitCount = staleHitCount;
+            return this;
+        }
+
+        public DNSCacheStats build() {
+            return new DNSCacheStats(this);
+        }
+    }
+}
@@ -1,25 +1,31 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 
-import java.io.ByteArrayOutputStream;
-import java.io.Console;
-import java.io.IOException;
+import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 
 public class DNSLookupService {
 
-    private static final int DEFAULT_DNS_PORT=53;
-    private static final int MAX_INDIRECTION_LEVEL=10;
-
     private static InetAddress rootServer;
     private static boolean verboseTracing=false;
-    private static DatagramSocket socket;
+    private static DatagramSocketTransport transport;
 
     private static DNSCache cache=DNSCache.getInstance();
 
-    private static Random random=new Random();
+    private static final long SNAPSHOT_INTERVAL_SECONDS=300;
+    private static Path snapshotFile;
+    private static int raceWidth=0;
+    private static Consumer<DNSNode> refresher;
 
     /**
      * Main function, called when program is first invoked.
@@ -28,24 +34,43 @@ public class DNSLookupService {
      */
     public static void main(String[] args) throws IOException {
 
-        if (args.length != 1) {
+        int batchIndex=1;
+        if (args.length >= 3 && args[1].equalsIgnoreCase("-snapshot")) {
+            snapshotFile=Paths.get(args[2]);
+            batchIndex=3;
+        }
+        if (args.length != batchIndex && !(args.length >= batchIndex + 2 && args[batchIndex].equalsIgnoreCase("-batch"))) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [-snapshot file] [-batch file|- [-concurrency N] [-race N] [-stale seconds] [-edns size|off] [-ndjson]]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("With a snapshot file, the cache is loaded from it on start, and saved to it periodically and on exit.");
+            System.err.println("In batch mode, each line of the file (or standard input, for -) has a host name and an optional type, or A+AAAA for both address types.");
             System.exit(1);
         }
 
         try {
             rootServer=InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
             System.exit(1);
         }
 
+        if (snapshotFile != null)
+            loadSnapshot();
+
+        if (args.length > batchIndex) {
+            // BATCH: resolve a whole file without the interactive prompt, then leave
+            boolean completed=runBatch(args,batchIndex);
+            saveSnapshot(snapshotFile);
+            System.exit(completed ? 0 : 1);
+        }
+        if (snapshotFile != null)
+            scheduleSnapshots();
+        System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+
         try {
-            socket=new DatagramSocket();
-            socket.setSoTimeout(5000);
+            transport=new DatagramSocketTransport(System.out);
+            startRefresher();
         } catch (SocketException ex) {
             ex.printStackTrace();
             System.exit(1);
@@ -84,6 +109,7 @@ public class DNSLookupService {
                 if (commandArgs.length == 2) {
                     try {
                         rootServer=InetAddress.getByName(commandArgs[1]);
+                        DelegationCache.getInstance().clear();
                         System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
@@ -118,8 +144,10 @@ public class DNSLookupService {
                 else if (commandArgs.length == 3)
                     try {
                         type=RecordType.valueOf(commandArgs[2].toUpperCase());
+                        if (type == RecordType.OTHER)
+                            throw new IllegalArgumentException();
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, CNAME, MX, SOA, TXT, PTR, SRV");
                         continue;
                     }
                 else {
@@ -127,327 +155,284 @@ public class DNSLookupService {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1],type);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve all names in a file concurrently, printing results as they complete
+                if (commandArgs.length >= 2 && commandArgs.length <= 4) {
+                    try {
+                        int concurrency=commandArgs.length >= 3 ? Integer.parseInt(commandArgs[2]) : BatchLookup.DEFAULT_CONCURRENCY;
+                        boolean ndjson=commandArgs.length == 4 && commandArgs[3].equalsIgnoreCase("ndjson");
+                        if (concurrency <= 0 || (commandArgs.length == 4 && !ndjson && !commandArgs[3].equalsIgnoreCase("text")))
+                            throw new NumberFormatException();
+                        runBatch(commandArgs[1],concurrency,ndjson,System.out);
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid call. Format:\n\tbatch file|- [concurrency] [text|ndjson]");
+                        continue;
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tbatch file|- [concurrency] [text|ndjson]");
+                    continue;
+                }
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachNode(DNSLookupService::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print cache hit rate, expirations, evictions and size
+                System.out.println(cache.getStats());
+            } else if (commandArgs[0].equalsIgnoreCase("cachesize")) {
+                // CACHESIZE: Limit the number of records and estimated bytes kept in the cache
+                if (commandArgs.length == 2 || commandArgs.length == 3) {
+                    try {
+                        long maxRecords=parseLimit(commandArgs[1]);
+                        long maxBytes=commandArgs.length == 3 ? parseLimit(commandArgs[2]) : Long.MAX_VALUE;
+                        cache.setMaximumSize(maxRecords,maxBytes);
+                        System.out.println("Cache limits are now: " + commandArgs[1] + " records, " + (commandArgs.length == 3 ? commandArgs[2] : "unlimited") + " bytes");
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid call. Format:\n\tcachesize records|unlimited [bytes|unlimited]");
+                        continue;
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tcachesize records|unlimited [bytes|unlimited]");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("snapshot")) {
+                // SNAPSHOT: Save the cache now, to the snapshot file or to another file
+                if (commandArgs.length == 2)
+                    saveSnapshot(Paths.get(commandArgs[1]));
+                else if (commandArgs.length == 1 && snapshotFile != null)
+                    saveSnapshot(snapshotFile);
+                else {
+                    System.err.println("Invalid call. Format:\n\tsnapshot [file]");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("offheap")) {
+                // OFFHEAP: Keep records evicted from the cache in an off-heap (or memory-mapped file) tier
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    cache.setOffHeapTier(0,null);
+                    System.out.println("Off-heap tier is now: off");
+                } else if (commandArgs.length == 2 || commandArgs.length == 3) {
+                    try {
+                        long capacity=Long.parseLong(commandArgs[1]);
+                        if (capacity <= 0)
+                            throw new NumberFormatException(commandArgs[1]);
+                        cache.setOffHeapTier(capacity,commandArgs.length == 3 ? Paths.get(commandArgs[2]) : null);
+                        System.out.println("Off-heap tier is now: " + capacity + " bytes" + (commandArgs.length == 3 ? " in " + commandArgs[2] : ""));
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid call. Format:\n\toffheap bytes|off [file]");
+                        continue;
+                    } catch (IOException ex) {
+                        System.err.println("Cannot create off-heap tier: " + ex.getMessage());
+                        continue;
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\toffheap bytes|off [file]");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Serve expired records for some time while they are refreshed (RFC 8767)
+                try {
+                    if (commandArgs.length != 2)
+                        throw new NumberFormatException();
+                    long seconds=commandArgs[1].equalsIgnoreCase("off") ? 0 : Long.parseLong(commandArgs[1]);
+                    if (seconds < 0)
+                        throw new NumberFormatException(commandArgs[1]);
+                    cache.setServeStale(seconds);
+                    System.out.println("Serve-stale is now: " + (seconds == 0 ? "off" : seconds + " seconds"));
+                } catch (NumberFormatException ex) {
+                    System.err.println("Invalid call. Format:\n\tstale seconds|off");
+                    continue;
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("edns")) {
+                // EDNS: Set the UDP payload size advertised in queries, or send queries without EDNS
+                try {
+                    if (commandArgs.length != 2)
+                        throw new IllegalArgumentException();
+                    Edns.getInstance().setPayloadSize(commandArgs[1].equalsIgnoreCase("off") ? 0 : Integer.parseInt(commandArgs[1]));
+                    int size=Edns.getInstance().getPayloadSize();
+                    System.out.println("EDNS is now: " + (size == 0 ? "off" : size + " bytes"));
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tedns size|off");
+                    continue;
+                }
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
                 System.err.println("\ttrace on|off");
                 System.err.println("\tserver IP");
+                System.err.println("\tbatch file|- [concurrency] [text|ndjson]");
                 System.err.println("\tdump");
+                System.err.println("\tstats");
+                System.err.println("\tcachesize records [bytes]");
+                System.err.println("\toffheap bytes|off [file]");
+                System.err.println("\tsnapshot [file]");
+                System.err.println("\tstale seconds|off");
+                System.err.println("\tedns size|off");
                 System.err.println("\tquit");
                 continue;
             }
 
         } while (true);
 
-        socket.close();
+        transport.close();
+        saveSnapshot(snapshotFile);
         System.out.println("Goodbye!");
     }
 
-    /**
-     * Finds all results for a host name and type and prints them on the standard output.
-     *
-     * @param hostName Fully qualified domain name of the host being searched.
-     * @param type     Record type for search.
-     */
-    private static void findAndPrintResults(String hostName,RecordType type) throws IOException {
+    // Refreshes popular and stale nodes of the cache on a background thread, with a socket of
+    // its own so that its queries are not traced.
+    private static void startRefresher() throws SocketException {
+        DatagramSocketTransport refreshTransport=new DatagramSocketTransport(null);
+        ExecutorService refreshes=Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread=new Thread(runnable,"dns-cache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher=node -> refreshes.execute(() -> {
+            try {
+                new Resolver(refreshTransport,rootServer,null,false).refresh(node);
+            } catch (RuntimeException e) {
+                // The node is resolved again by its next lookup once it expires
+            }
+        });
+        cache.setRefresher(refresher);
+    }
 
-        DNSNode node=new DNSNode(hostName,type);
+    // Loads the cache from the snapshot file, if it exists.
+    private static void loadSnapshot() {
+        if (!Files.exists(snapshotFile))
+            return;
         try {
-            printResults(node,getResults(node,0));
-        } catch (TimeoutTwiceException e) {
-            printResults(node,Collections.emptySet());
+            long start=System.nanoTime();
+            long loaded=CacheSnapshot.load(cache,snapshotFile);
+            System.err.println("Loaded " + loaded + " records from " + snapshotFile + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+        } catch (IOException e) {
+            System.err.println("Cannot load snapshot (" + e.getMessage() + ").");
         }
     }
 
-    /**
-     * Finds all the result for a specific node.
-     *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
-     */
-    private static Set<ResourceRecord> getResults(DNSNode node,int indirectionLevel) throws IOException {
-
-        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-            System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
-        }
-
-        // Memoization: first look up cache with the specified type
-        Set<ResourceRecord> wantedResourceRecords=cache.getCachedResults(node);
-
-        // If the set is non empty means we have answers of this query, return it
-        if (!wantedResourceRecords.isEmpty()) {
-            return wantedResourceRecords;
-        }
-
-        // Perform a DNS lookup
-        retrieveResultsFromServer(node,rootServer);
-
-        // Get result again
-        wantedResourceRecords=cache.getCachedResults(node);
-
-        // If it is still empty, it might be : 1. we found a CNAME answer in the previous retrieveResultsFromServer
-        // 2. we found nothing, we cannot resolve it(return empty).
-        if (wantedResourceRecords.isEmpty()) {
-
-            // (we continue a lookup by making a recursive call on CNAME's hostname but initial query type i.e. A/AAAA)
-
-            // First make a new query node with initial hostname with CNAME RR type
-            DNSNode sameHostNameButCNAMETypeQuery=new DNSNode(node.getHostName(),RecordType.CNAME);
-
-            // Lookup this new node in cache
-            Set<ResourceRecord> sameHostNameButCNAMETypeQueryRRs=cache.getCachedResults(sameHostNameButCNAMETypeQuery);
-
-            // For all the alias names of the original hostname we want to look up to
-            for (ResourceRecord CNAMEresourceRecord : sameHostNameButCNAMETypeQueryRRs) {
-
-                // Make a CNAMEHostNameButTargetType node, do it again, attach results to the node that we are really interested in.
-                DNSNode CNAMEHostNameButTargetType=new DNSNode(CNAMEresourceRecord.getTextResult(),node.getType());
-
-                // But this CNAMEHostNameButTargetType may be queried before as well!! If it is empty we do a recursive call otherwise we can use the cached results.
-                Set<ResourceRecord> CNAMEHostNameButTargetTypeRRs=cache.getCachedResults(CNAMEHostNameButTargetType).isEmpty() ? getResults(CNAMEHostNameButTargetType,indirectionLevel + 1)
-                        : cache.getCachedResults(CNAMEHostNameButTargetType);
-
-                // Append new results of alias, to the original host name
-                for (ResourceRecord CNAMEHostNameButTargetTypeRR : CNAMEHostNameButTargetTypeRRs) {
-                    ResourceRecord newRR=new ResourceRecord(node.getHostName(),node.getType(),CNAMEHostNameButTargetTypeRR.getTTL(),CNAMEHostNameButTargetTypeRR.getInetResult());
-                    cache.addResult(newRR);
-                }
-            }
+    // Saves the snapshot file in the background at a fixed interval.
+    private static void scheduleSnapshots() {
+        ScheduledExecutorService snapshots=Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread=new Thread(runnable,"dns-cache-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleWithFixedDelay(() -> saveSnapshot(snapshotFile),SNAPSHOT_INTERVAL_SECONDS,SNAPSHOT_INTERVAL_SECONDS,TimeUnit.SECONDS);
+    }
 
-            // Fetch again
-            wantedResourceRecords=cache.getCachedResults(node);
+    // Saves the cache to a snapshot file; does nothing if there is no file.
+    private static synchronized void saveSnapshot(Path file) {
+        if (file == null)
+            return;
+        try {
+            CacheSnapshot.save(cache,file);
+        } catch (IOException e) {
+            System.err.println("Cannot save snapshot (" + e.getMessage() + ").");
         }
-        return wantedResourceRecords;
-
     }
 
-    /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
-     *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
-     */
-    private static void retrieveResultsFromServer(DNSNode node,InetAddress server) throws IOException {
-        // Send a data packet to server, on port 53
-        while (true) {
-
-            // Timeout 5 second
-            socket.setSoTimeout(5000);
-
-            // UDP
-            DatagramPacket receivedPacket=getQueryResult(node,server);
-
-            // Parse the result and get hint on what to do next.
-            // We abstract the hints in a new class SingleQueryResult
-            SingleQueryResult parseResult=parseAndCacheResult(node,receivedPacket);
-
-            // If it is a AA, we finish since we find some "answers" although they might be CNAME.
-            if (parseResult.isAA()) {
-                return;
-            } else {
-                // else we still need to do it.
-                String nextHostToLookup=parseResult.getNexthosttolookup();
-                // Process ".ca" case
-                if (nextHostToLookup == null) break;
-                if (!nextHostToLookup.equalsIgnoreCase(node.getHostName())) {
-                    // in this branch, nextHostToLookup must be a name server's hostname which we don't know it IP, thus
-                    // we need to make a recursive call to find its IP, once we found this IP, we can go back to previous
-                    // query
-                    if (cache.getCachedResults(new DNSNode(nextHostToLookup,RecordType.A)).isEmpty()) {
-                        retrieveResultsFromServer(new DNSNode(nextHostToLookup,RecordType.A),rootServer);
-                    }
-                    server=getATypeIPAddressByHostNameFromCache(nextHostToLookup);
-                    assert server != null;
-                } else {
-                    // no need to switch gear
-                    server=parseResult.getNextserverIPaddress();
+    // Runs a batch from the command line: rootServer [-snapshot file] -batch file|- [-concurrency N] [-race N] [-stale seconds] [-edns size|off] [-ndjson]
+    private static boolean runBatch(String[] args,int batchIndex) {
+        int concurrency=BatchLookup.DEFAULT_CONCURRENCY;
+        boolean ndjson=false;
+        for (int i=batchIndex + 2; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("-ndjson"))
+                ndjson=true;
+            else if (args[i].equalsIgnoreCase("-concurrency") && i + 1 < args.length)
+                try {
+                    concurrency=Integer.parseInt(args[++i]);
+                } catch (NumberFormatException ex) {
+                    concurrency=0;
                 }
+            else if (args[i].equalsIgnoreCase("-stale") && i + 1 < args.length)
+                try {
+                    long seconds=Long.parseLong(args[++i]);
+                    if (seconds < 0)
+                        concurrency=0;
+                    else
+                        cache.setServeStale(seconds);
+                } catch (NumberFormatException ex) {
+                    concurrency=0;
+                }
+            else if (args[i].equalsIgnoreCase("-edns") && i + 1 < args.length)
+                try {
+                    Edns.getInstance().setPayloadSize(args[++i].equalsIgnoreCase("off") ? 0 : Integer.parseInt(args[i]));
+                } catch (IllegalArgumentException ex) {
+                    concurrency=0;
+                }
+            else if (args[i].equalsIgnoreCase("-race") && i + 1 < args.length)
+                try {
+                    raceWidth=Integer.parseInt(args[++i]);
+                    if (raceWidth <= 0)
+                        concurrency=0;
+                } catch (NumberFormatException ex) {
+                    concurrency=0;
+                }
+            else
+                concurrency=0;
+            if (concurrency <= 0) {
+                System.err.println("Invalid batch option: " + args[i]);
+                return false;
             }
         }
+        PrintStream out=new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),1 << 16),false);
+        boolean completed=runBatch(args[batchIndex + 1],concurrency,ndjson,out);
+        out.flush();
+        return completed;
     }
 
-    // Helper, find a valid IP of name server.
-    private static InetAddress getATypeIPAddressByHostNameFromCache(String nextHostToLookup) {
-        Set<ResourceRecord> resourceRecords=cache.getCachedResults(new DNSNode(nextHostToLookup,RecordType.A));
-        for (ResourceRecord rr : resourceRecords) {
-            return rr.getInetResult();
+    // Resolves every line of a file (or standard input, for "-") and writes results to out.
+    private static boolean runBatch(String fileName,int concurrency,boolean ndjson,PrintStream out) {
+        try (VirtualThreadResolver resolver=new VirtualThreadResolver(rootServer);
+             BufferedReader input=fileName.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+                     : new BufferedReader(new FileReader(fileName))) {
+            if (raceWidth > 0)
+                resolver.setRaceWidth(raceWidth);
+            // Popular and stale nodes are refreshed through the batch's own engine
+            cache.setRefresher(resolver::refresh);
+            long count=new BatchLookup(resolver,concurrency,ndjson,out).run(input);
+            System.err.println("Batch completed: " + count + " lookups.");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Batch failed (" + e.getMessage() + ").");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            cache.setRefresher(refresher);
         }
-        return null;
-    }
-
-
-    // Encode a packet, send it and receive the response packet.
-    private static DatagramPacket getQueryResult(DNSNode node,InetAddress server) {
-
-        int queryID, resID;
-        DatagramPacket respPacket;
-        int timeOutOccur=0;
-        do {
-            // Try to send query to server, it returns a int value: queryID
-            try {
-                queryID=sendQuery(node,server);
-            } catch (IOException e) {
-                throw new OtherIOException();
-            }
-
-            // response buffer
-            byte[] resbuf1024=new byte[0x400];
-            respPacket=new DatagramPacket(resbuf1024,resbuf1024.length);
-
-            // receive
-            try {
-                socket.receive(respPacket);
-            } catch (SocketTimeoutException e) {
-                timeOutOccur++;
-                if (timeOutOccur == 2) {
-                    // If it timeout twice, we throw a customized exception
-                    throw new TimeoutTwiceException();
-                }
-            } catch (IOException e) {
-                throw new OtherIOException();
-            }
-
-            //extrace responseID to be compared with sent packet's queryID since UDP doesn't promise they can be the same
-            byte[] data=respPacket.getData();
-            // check if identifier is the same
-            resID=(data.length == 0 || data == null) ? -1 : ComputationHelper.twoOctetToInt(0,1,data);
-        } while (queryID != resID);
-
-        System.out.print("Response ID: " + resID + " " + "Authoritative = ");
-
-        return respPacket;
     }
 
-    private static int sendQuery(DNSNode node,InetAddress server) throws IOException {
-        ByteArrayOutputStream bufBuilder=new ByteArrayOutputStream();
-
-        int queryID=random.nextInt(0xffff) + 1;
-
-        // ENCODE
-        DatagramPacket packet=QueryPacketBuilder.formRequestPacketFromNode(queryID,node,server,bufBuilder,DEFAULT_DNS_PORT);
-        socket.send(packet);
-
-        System.out.println();
-        System.out.println();
-        System.out.println("Query ID     " + queryID + " " + node.getHostName() + "  " + node.getType().toString() + " " + "--> " + server.getHostAddress());
-        return queryID;
+    // Parses a cache limit, where "unlimited" means no limit.
+    private static long parseLimit(String limit) {
+        if (limit.equalsIgnoreCase("unlimited"))
+            return Long.MAX_VALUE;
+        long value=Long.parseLong(limit);
+        if (value <= 0)
+            throw new NumberFormatException(limit);
+        return value;
     }
 
+    /**
+     * Finds all results for a host name and type and prints them on the standard output.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param type     Record type for search.
+     */
+    private static void findAndPrintResults(String hostName,RecordType type) throws IOException {
 
-    static SingleQueryResult parseAndCacheResult(DNSNode node,DatagramPacket receivedResponsePacket) throws UnknownHostException {
-        final byte[] data=receivedResponsePacket.getData();
-        // parse response query ID, is authoritative or not, and print these in one line like :
-        // e.g. Response ID: 54836 Authoritative = false
-
-        int AA=(data[2] & 0x4) >>> 2;
-        System.out.print(AA == 1 ? "true\n" : "false\n");
-
-        int answerRRCount=ComputationHelper.twoOctetToInt(6,7,data);
-        int authoritativeRRCount=ComputationHelper.twoOctetToInt(8,9,data);
-        int additionalRRCount=ComputationHelper.twoOctetToInt(10,11,data);
-
-        List<ResourceRecord> answerRRs=new ArrayList<>();
-        List<ResourceRecord> authoritativeRRs=new ArrayList<>();
-        List<ResourceRecord> addtionalRRs=new ArrayList<>();
-
-        ByteArrayOutputStream bufBuilder=new ByteArrayOutputStream();
-
-        int index;
-        for (index=12; index < data.length; index++) {
-            if (data[index] == 0x00) {
-                break;
-            }
-            bufBuilder.write(data[index]);
-        }
-
-        index+=5;
-
-        String hostname=PureLabelsDecoder.decodingQname(bufBuilder.toByteArray(),bufBuilder.size());
-
-        assert hostname == node.getHostName();
-
-        int startPos=index;
-
-
-        RRConstructor rrConstructor=new RRConstructor();
-        SingleQueryResult singleQueryResult=new SingleQueryResult();
-
-        // Parse and print answers, move startPos accordingly
-        startPos=parseRRsOfThreeCategories("Answers",data,answerRRCount,answerRRs,startPos,rrConstructor,AA);
-
-        // Parse and print authoritative rrs, move startPos accordingly
-        startPos=parseRRsOfThreeCategories("Nameservers",data,authoritativeRRCount,authoritativeRRs,startPos,rrConstructor,AA);
-
-        // Parse and print additional rrs, move startPos accordingly
-        startPos=parseRRsOfThreeCategories("Additional Information",data,additionalRRCount,addtionalRRs,startPos,rrConstructor,AA);
-
-
-        //Start creating answer;
-        //simplest answer, found authorative answer
-        if (AA == 1) {
-            singleQueryResult.setAA(true);
-        } else {
-            if (additionalRRCount > 0) {
-                // host is the same as before, we only need to switch to another NS IP
-                singleQueryResult.setNexthosttolookup(node.getHostName());
-                singleQueryResult.setNextserverIPaddress(getAnATypeIPAddressFromAddtionalRRs(addtionalRRs));
-                assert singleQueryResult.getNextserverIPaddress() != null;
-            } else if (authoritativeRRCount > 0) {
-                singleQueryResult.setNexthosttolookup(authoritativeRRs.get(0).getTextResult());
-                // nextServerIP becomes rootServer again!
-            } else {
-                singleQueryResult.setNextserverIPaddress(null);
-                singleQueryResult.setNexthosttolookup(null);
-            }
-        }
-
-        return singleQueryResult;
-
-    }
-
-    private static InetAddress getAnATypeIPAddressFromAddtionalRRs(List<ResourceRecord> addtionalRRs) {
-        for (ResourceRecord rr : addtionalRRs) {
-            if (rr.getType() == RecordType.A) {
-                return rr.getInetResult();
-            }
-        }
-        return null;
-    }
-
-    private static int parseRRsOfThreeCategories(String category,byte[] data,int rrCounts,List<ResourceRecord> resourceRecordList,int startPos,RRConstructor rrConstructor,int AA) throws UnknownHostException {
-        RRConstructionOutcome outcome;
-        if (verboseTracing) {
-            System.out.println("  " + category + " (" + rrCounts + ")");
+        DNSNode node;
+        try {
+            node=new DNSNode(hostName,type);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid host name (" + e.getMessage() + ").");
+            return;
         }
-        for (int i=1; i <= rrCounts; i++) {
-            outcome=rrConstructor.constructingRR(data,startPos);
-            resourceRecordList.add(outcome.getRr());
-            if (category.equalsIgnoreCase("Additional Information") || (category.equalsIgnoreCase("Answers") && AA == 1))
-                cache.addResult(outcome.getRr());
-            if (verboseTracing)
-                verbosePrintResourceRecord(outcome.getRr(),outcome.getRtype());
-            startPos=outcome.getNewOffset();
+        try {
+            printResults(node,new Resolver(transport,rootServer,System.out,verboseTracing).getResults(node));
+        } catch (TimeoutTwiceException e) {
+            printResults(node,Collections.emptySet());
         }
-        return startPos;
-    }
-
-    private static void verbosePrintResourceRecord(ResourceRecord record,int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30s %-10d %-4s %s\n",record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
     }
 
     /**
@@ -457,12 +442,36 @@ public class DNSLookupService {
      * @param results Set of results to be printed for the node.
      */
     private static void printResults(DNSNode node,Set<ResourceRecord> results) {
+        printResults(System.out,node,results);
+    }
+
+    /**
+     * Prints the result of a DNS query on a specific stream.
+     *
+     * @param out     Stream where results are printed.
+     * @param node    Host name and record type used for the query.
+     * @param results Set of results to be printed for the node.
+     */
+    static void printResults(PrintStream out,DNSNode node,Set<ResourceRecord> results) {
+        printResults(out,node.getHostName(),node.getType().toString(),results);
+    }
+
+    /**
+     * Prints the results of one or more queries for the same host name on a specific stream, each
+     * record with its own type.
+     *
+     * @param out      Stream where results are printed.
+     * @param hostName Host name used for the queries.
+     * @param type     Record types queried, printed if there are no results.
+     * @param results  Set of results to be printed for the host name.
+     */
+    static void printResults(PrintStream out,String hostName,String type,Set<ResourceRecord> results) {
         if (results.isEmpty())
-            System.out.printf("%-30s %-5s %-8d %s\n",node.getHostName(),
-                    node.getType(),-1,"0.0.0.0");
+            out.printf("%-30s %-5s %-8d %s\n",hostName,
+                    type,-1,"0.0.0.0");
         for (ResourceRecord record : results) {
-            System.out.printf("%-30s %-5s %-8d %s\n",node.getHostName(),
-                    node.getType(),record.getTTL(),record.getTextResult());
+            out.printf("%-30s %-5s %-8d %s\n",hostName,
+                    record.getType(),record.getTTL(),record.getTextResult());
         }
     }
-}
\ No newline at end of file
+}
@@ -3,21 +3,30 @@ package ca.ubc.cs.cs317.dnslookup;
 import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
- * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * Each node represents a fully-qualified domain name and a record type. The name is kept as a
+ * canonical (lower-case, interned) DomainName, so two nodes with the same host name, in any
+ * case, and type are considered equal, and comparing them does not look at any characters.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
-    private String hostName;
+    private DomainName name;
     private RecordType type;
 
     public DNSNode(String hostName, RecordType type) {
-        this.hostName = hostName;
+        this(DomainName.of(hostName), type);
+    }
+
+    public DNSNode(DomainName name, RecordType type) {
+        this.name = name;
         this.type = type;
     }
 
+    public DomainName getName() {
+        return name;
+    }
+
     public String getHostName() {
-        return hostName;
+        return name.toString();
     }
 
     public RecordType getType() {
@@ -31,26 +40,23 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
-        return type == dnsNode.type;
+        return name == dnsNode.name && type == dnsNode.type;
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
-        return result;
+        return 31 * name.hashCode() + type.ordinal();
     }
 
     @Override
     public String toString() {
-        return hostName + " (" + type + ")";
+        return name + " (" + type + ")";
     }
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        if (name != o.name)
+            return name.compareTo(o.name);
         else
             return type.compareTo(o.type);
     }
@@ -0,0 +1,294 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** A parsed DNS response message. It holds the header fields used by the resolver and the
+ * resource records of the answer, authority (nameservers) and additional sections. Parsing
+ * does not print anything and does not change the cache, so the same response can be used by
+ * the interactive resolver and by the asynchronous engine.
+ */
+public class DNSResponse {
+
+    public static final int NO_ERROR = 0;
+    public static final int FORMAT_ERROR = 1;
+    public static final int NAME_ERROR = 3;
+    public static final int NOT_IMPLEMENTED = 4;
+
+    // Type of the EDNS pseudo-record (RFC 6891)
+    private static final int OPT = 41;
+
+    private final int id;
+    private final boolean authoritative;
+    private final int responseCode;
+    private final long negativeTTL;
+    private final int ednsPayloadSize;
+    private final List<ResourceRecord> answers;
+    private final List<ResourceRecord> nameservers;
+    private final List<ResourceRecord> additional;
+
+    private DNSResponse(int id, boolean authoritative, int responseCode, long negativeTTL, int ednsPayloadSize,
+                        List<ResourceRecord> answers, List<ResourceRecord> nameservers, List<ResourceRecord> additional) {
+        this.id = id;
+        this.authoritative = authoritative;
+        this.responseCode = responseCode;
+        this.negativeTTL = negativeTTL;
+        this.ednsPayloadSize = ednsPayloadSize;
+        this.answers = answers;
+        this.nameservers = nameservers;
+        this.additional = additional;
+    }
+
+    /** Parses a response message.
+     *
+     * @param data Buffer containing the message, starting at index 0.
+     * @return The parsed response.
+     * @throws UnknownHostException If an address record could not be converted into an address.
+     */
+    public static DNSResponse parse(final byte[] data) throws UnknownHostException {
+        return parse(ByteBuffer.wrap(data), new MessageDecoder());
+    }
+
+    /** Parses a response message between the position and the limit of a buffer, using a
+     * decoder that can be reused for other messages. Only the records themselves are created.
+     *
+     * @param data    Buffer containing the message.
+     * @param decoder Decoder used to walk the message.
+     * @return The parsed response.
+     * @throws UnknownHostException      If an address record has an invalid length.
+     * @throws IndexOutOfBoundsException If the message is truncated or malformed.
+     */
+    public static DNSResponse parse(ByteBuffer data, MessageDecoder decoder) throws UnknownHostException {
+        decoder.wrap(data);
+        int answerRRCount = decoder.getAnswerCount();
+        int authoritativeRRCount = decoder.getAuthorityCount();
+        int additionalRRCount = decoder.getAdditionalCount();
+        decoder.skipQuestions();
+
+        List<ResourceRecord> answers = new ArrayList<>(answerRRCount);
+        List<ResourceRecord> nameservers = new ArrayList<>(authoritativeRRCount);
+        List<ResourceRecord> additional = new ArrayList<>(additionalRRCount);
+        parseSection(decoder, answerRRCount, answers);
+        long negativeTTL = parseSection(decoder, authoritativeRRCount, nameservers);
+
+        // The OPT pseudo-record is not a resource record: only the payload size it advertises is kept
+        int ednsPayloadSize = -1;
+        for (int i = 0; i < additionalRRCount; i++) {
+            decoder.nextRecord();
+            if (decoder.getType() == OPT) {
+                ednsPayloadSize = decoder.getRecordClass();
+                continue;
+            }
+            additional.add(decoder.toResourceRecord());
+        }
+
+        return new DNSResponse(decoder.getId(), decoder.isAuthoritative(), decoder.getResponseCode(), negativeTTL,
+                ednsPayloadSize, answers, nameservers, additional);
+    }
+
+    // Returns the negative TTL given by the section's first well-formed SOA record (the smaller of
+    // its TTL and its MINIMUM field, as in RFC 2308), or -1 if the section has no such record, in
+    // which case the response is not cached as negative.
+    private static long parseSection(MessageDecoder decoder, int count, List<ResourceRecord> records)
+            throws UnknownHostException {
+        long negativeTTL = -1;
+        for (int i = 0; i < count; i++) {
+            decoder.nextRecord();
+            records.add(decoder.toResourceRecord());
+            if (negativeTTL < 0 && decoder.getType() == RecordType.SOA.getCode()) {
+                long minimum = decoder.getSoaMinimum();
+                if (minimum >= 0)
+                    negativeTTL = Math.min(decoder.getTTL(), minimum);
+            }
+        }
+        return negativeTTL;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    /** Returns the RCODE of the response, e.g., NO_ERROR or NAME_ERROR (NXDOMAIN).
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /** Returns true if the response has an OPT record, i.e., the server supports EDNS.
+     */
+    public boolean hasEdns() {
+        return ednsPayloadSize >= 0;
+    }
+
+    /** Returns the UDP payload size advertised by the server in its OPT record, or -1 if the
+     * response has none.
+     */
+    public int getEdnsPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /** Returns true if this response to a query with EDNS shows that the server does not support
+     * it: an error saying the query was not understood (FORMERR or NOTIMP), without an OPT record.
+     * The query should then be sent again without EDNS (RFC 6891, section 7).
+     */
+    public boolean isEdnsRejection() {
+        return !hasEdns() && (responseCode == FORMAT_ERROR || responseCode == NOT_IMPLEMENTED);
+    }
+
+    public List<ResourceRecord> getAnswers() {
+        return Collections.unmodifiableList(answers);
+    }
+
+    public List<ResourceRecord> getNameservers() {
+        return Collections.unmodifiableList(nameservers);
+    }
+
+    public List<ResourceRecord> getAdditional() {
+        return Collections.unmodifiableList(additional);
+    }
+
+    /** Adds the records of this response that the resolver relies on to the cache: the
+     * additional records (glue) within the zone of the server that sent the response, and the
+     * answers if the response is authoritative. If the response is negative (the name does not
+     * exist, or has no records of the queried type), that negative result is cached as well.
+     *
+     * @param cache      Cache where records are to be stored.
+     * @param node       Host name and record type used for the query.
+     * @param serverZone Zone of the server the query was sent to (the root for a root server).
+     */
+    public void cacheResults(DNSCache cache, DNSNode node, DomainName serverZone) {
+        if (authoritative)
+            answers.forEach(cache::addResult);
+        for (ResourceRecord record : additional)
+            if (record.getName().isSubdomainOf(serverZone))
+                cache.addResult(record);
+        if (negativeTTL >= 0)
+            cacheNegativeResult(cache, node);
+    }
+
+    /** Caches the negative result of this response, as described in RFC 2308. A negative
+     * response is either a name error, or an authoritative response without an answer of the
+     * queried type (NODATA), and has the SOA record of the zone in its authority section. If
+     * the answers hold a CNAME chain, the result applies to the last name of the chain. It is
+     * only cached if that name is within the SOA record's zone.
+     */
+    private void cacheNegativeResult(DNSCache cache, DNSNode node) {
+        boolean nameError = responseCode == NAME_ERROR;
+        if (!nameError && (responseCode != NO_ERROR || !authoritative))
+            return;
+
+        DomainName name = node.getName();
+        for (int hops = 0; ; hops++) {
+            ResourceRecord alias = null;
+            for (ResourceRecord rr : answers) {
+                if (rr.getName() != name)
+                    continue;
+                if (rr.getType() == node.getType())
+                    return;
+                if (rr.getType() == RecordType.CNAME)
+                    alias = rr;
+            }
+            if (alias == null)
+                break;
+            // CNAME loops are not cached
+            if (hops == answers.size())
+                return;
+            name = alias.getNameResult();
+        }
+
+        for (ResourceRecord rr : nameservers) {
+            if (rr.getType() == RecordType.SOA) {
+                if (name.isSubdomainOf(rr.getName()))
+                    cache.addNegativeResult(new DNSNode(name, node.getType()), nameError, negativeTTL);
+                return;
+            }
+        }
+    }
+
+    /** Determines how a query for a node should continue after this response was received. An
+     * authoritative response ends the query. Otherwise, if glue records are available, the
+     * same host is queried at the first nameserver with an A record; if only nameserver names
+     * are available, the first nameserver's address must be looked up first.
+     *
+     * @param node Host name and record type used for the query.
+     * @return Hints on what to do next.
+     */
+    public SingleQueryResult nextStep(DNSNode node) {
+        SingleQueryResult singleQueryResult = new SingleQueryResult();
+        if (authoritative) {
+            singleQueryResult.setAA(true);
+        } else if (!additional.isEmpty()) {
+            // host is the same as before, we only need to switch to another NS IP
+            singleQueryResult.setNexthosttolookup(node.getHostName());
+            singleQueryResult.setNextserverIPaddress(getFirstAddress(additional));
+        } else if (!nameservers.isEmpty()) {
+            singleQueryResult.setNexthosttolookup(nameservers.get(0).getTextResult());
+            // nextServerIP becomes rootServer again!
+        }
+        return singleQueryResult;
+    }
+
+    /** Returns the addresses of the servers a referral points to: the glue addresses of the
+     * nameservers in the authority section, in the order of the nameservers. If no glue matches
+     * a nameserver, the first address of the additional section is used, if any.
+     *
+     * @return A potentially empty list of server addresses.
+     */
+    public List<InetAddress> getReferralServers() {
+        List<InetAddress> servers = new ArrayList<>();
+        for (ResourceRecord nameserver : nameservers) {
+            if (nameserver.getType() != RecordType.NS)
+                continue;
+            for (ResourceRecord rr : additional)
+                if (rr.getType() == RecordType.A && rr.getName() == nameserver.getNameResult())
+                    servers.add(rr.getInetResult());
+        }
+        if (servers.isEmpty()) {
+            InetAddress first = getFirstAddress(additional);
+            if (first != null)
+                servers.add(first);
+        }
+        return servers;
+    }
+
+    /** Returns the zone a referral delegates: the owner of the first NS record in the authority
+     * section that contains the queried name.
+     *
+     * @param name Name used for the query.
+     * @return The zone, or null if no NS record of the authority section contains the name.
+     */
+    public DomainName getReferralZone(DomainName name) {
+        for (ResourceRecord rr : nameservers)
+            if (rr.getType() == RecordType.NS && rr.getNameResult() != null && name.isSubdomainOf(rr.getName()))
+                return rr.getName();
+        return null;
+    }
+
+    /** Returns the names of the nameservers in the authority section, without duplicates.
+     *
+     * @return A potentially empty list of nameserver names.
+     */
+    public List<DomainName> getNameserverNames() {
+        List<DomainName> names = new ArrayList<>();
+        for (ResourceRecord rr : nameservers)
+            if (rr.getType() == RecordType.NS && !names.contains(rr.getNameResult()))
+                names.add(rr.getNameResult());
+        return names;
+    }
+
+    private static InetAddress getFirstAddress(List<ResourceRecord> records) {
+        for (ResourceRecord rr : records) {
+            if (rr.getType() == RecordType.A)
+                return rr.getInetResult();
+        }
+        return null;
+    }
+}
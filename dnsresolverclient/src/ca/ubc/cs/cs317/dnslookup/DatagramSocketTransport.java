@@ -0,0 +1,140 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Blocking transport using a dedicated datagram socket, as used by the interactive resolver.
+// Only one query can be outstanding on it at a time.
+public class DatagramSocketTransport implements QueryTransport, Closeable {
+
+    private static final int DEFAULT_DNS_PORT=53;
+
+    private final DatagramSocket socket;
+    // Query IDs are unpredictable; queries are serialized, so the generator is never shared
+    private final SplittableRandom random=new SplittableRandom(new SecureRandom().nextLong());
+    private final MessageDecoder decoder=new MessageDecoder();
+    private final PrintStream trace;
+    private final ServerStatistics statistics=ServerStatistics.getInstance();
+    private final TcpTransport tcp=TcpTransport.getInstance();
+    private final Edns edns=Edns.getInstance();
+    // Buffers and packets are reused for every query, as only one query is outstanding at a time
+    private final ByteBuffer request=ByteBuffer.allocate(QueryPacketBuilder.MAX_QUERY_LENGTH);
+    private final DatagramPacket requestPacket=new DatagramPacket(new byte[0],0);
+    private final byte[] responseBytes=new byte[Edns.RECEIVE_BUFFER_SIZE];
+    private final DatagramPacket responsePacket=new DatagramPacket(responseBytes,responseBytes.length);
+
+    // Query IDs are printed on trace, unless it is null.
+    public DatagramSocketTransport(PrintStream trace) throws SocketException {
+        this.socket=new DatagramSocket();
+        this.trace=trace;
+    }
+
+    // Encode a packet, send it and receive the response packet. Each attempt waits for the server's
+    // own retransmission timeout, which the first timeout doubles.
+    @Override
+    public synchronized DNSResponse query(DNSNode node,InetAddress server) {
+
+        int ednsPayloadSize=edns.payloadSizeFor(server);
+        int queryID, resID;
+        int timeOutOccur=0;
+        long sentAt;
+        do {
+            // Try to send query to server, it returns a int value: queryID
+            try {
+                socket.setSoTimeout((int) statistics.timeoutFor(server));
+                sentAt=System.nanoTime();
+                queryID=sendQuery(node,server,ednsPayloadSize);
+            } catch (IOException e) {
+                throw new OtherIOException();
+            }
+
+            // receive, into the same buffer every time
+            responsePacket.setData(responseBytes);
+            try {
+                socket.receive(responsePacket);
+            } catch (SocketTimeoutException e) {
+                statistics.recordTimeout(server);
+                timeOutOccur++;
+                if (timeOutOccur == 2) {
+                    // If it timeout twice, we throw a customized exception
+                    throw new TimeoutTwiceException();
+                }
+                // The buffer still holds an earlier response, which must not be matched
+                resID=-1;
+                continue;
+            } catch (IOException e) {
+                throw new OtherIOException();
+            }
+
+            //extrace responseID to be compared with sent packet's queryID since UDP doesn't promise they can be the same
+            // check if identifier is the same
+            resID=responsePacket.getLength() < 2 ? -1 : ComputationHelper.twoOctetToInt(0,1,responseBytes);
+        } while (queryID != resID);
+        statistics.recordResponse(server,(System.nanoTime() - sentAt) / 1e6);
+
+        DNSResponse response;
+        try {
+            ByteBuffer message=ByteBuffer.wrap(responseBytes,0,responsePacket.getLength());
+            // A truncated response, or one that filled the whole buffer and may have been cut off, is retrieved again over TCP
+            if (decoder.wrap(message).isTruncated() || responsePacket.getLength() == responseBytes.length) {
+                return queryOverTcp(node,server);
+            }
+            response=DNSResponse.parse(message,decoder);
+        } catch (UnknownHostException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new OtherIOException();
+        }
+
+        // A server that does not support EDNS is queried again without it, now and from now on
+        if (ednsPayloadSize > 0 && response.isEdnsRejection()) {
+            edns.recordRejection(server);
+            if (trace != null) {
+                trace.println("EDNS not supported, query sent again without it --> " + server.getHostAddress());
+            }
+            return query(node,server);
+        }
+        return response;
+    }
+
+    private int sendQuery(DNSNode node,InetAddress server,int ednsPayloadSize) throws IOException {
+        int queryID=random.nextInt(1,0x10000);
+
+        // ENCODE, straight into the request buffer
+        request.clear();
+        QueryPacketBuilder.writeQuery(request,queryID,node,ednsPayloadSize);
+        requestPacket.setData(request.array(),0,request.position());
+        requestPacket.setAddress(server);
+        requestPacket.setPort(DEFAULT_DNS_PORT);
+        socket.send(requestPacket);
+
+        if (trace != null) {
+            trace.println();
+            trace.println();
+            trace.println("Query ID     " + queryID + " " + node.getHostName() + "  " + node.getType().toString() + " " + "--> " + server.getHostAddress());
+        }
+        return queryID;
+    }
+
+    private DNSResponse queryOverTcp(DNSNode node,InetAddress server) {
+        if (trace != null) {
+            trace.println("Response truncated, query sent again over TCP --> " + server.getHostAddress());
+        }
+        return tcp.query(node,server);
+    }
+
+    // Servers are tried in order of their expected response time.
+    @Override
+    public DNSResponse query(DNSNode node,List<InetAddress> servers) {
+        return QueryTransport.super.query(node,statistics.order(servers));
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
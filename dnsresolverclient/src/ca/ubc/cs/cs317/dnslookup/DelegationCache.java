@@ -0,0 +1,188 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Cache of delegations (zone cuts) learned from referrals. For each zone, such as "com" or
+ * "example.com", it keeps the names of the zone's nameservers and the addresses provided as glue
+ * in the referral, for as long as the shortest TTL of the nameserver records. Resolutions start
+ * at the deepest zone known for the queried name instead of the root server, so most lookups
+ * skip the root and top-level domain servers.
+ *
+ * Referrals are only accepted for zones that contain the queried name and lie strictly below the
+ * zone of the server that sent them, and glue is only accepted for the nameservers of the
+ * referral within that server's zone, so that a server cannot insert or replace delegations
+ * outside its own bailiwick.
+ */
+public class DelegationCache {
+
+    private static final int MAX_ZONES = 100_000;
+
+    private static DelegationCache instance = new DelegationCache();
+
+    private final Map<DomainName, Delegation> delegations = new ConcurrentHashMap<>();
+    private final DNSCache cache = DNSCache.getInstance();
+
+    private DelegationCache() {
+    }
+
+    public static DelegationCache getInstance() {
+        return instance;
+    }
+
+    /** Records the delegation contained in a referral, if any. A referral is a response that is
+     * not authoritative and has NS records in its authority section.
+     *
+     * A referral is only accepted if it delegates a zone strictly below the zone of the server
+     * that sent it, so that a server cannot refer resolutions upwards or sideways (e.g., a server
+     * for "example.com" returning a referral for "com"). An unexpired delegation is only replaced
+     * by a referral from a server at least as close to the zone as the one it came from, and glue
+     * is only accepted for nameservers within the zone of the server that sent it.
+     *
+     * @param node       Host name and record type used for the query.
+     * @param response   Response received for the query.
+     * @param serverZone Zone of the server the query was sent to (the root for a root server).
+     */
+    public void addReferral(DNSNode node, DNSResponse response, DomainName serverZone) {
+        if (response.isAuthoritative())
+            return;
+
+        DomainName zone = response.getReferralZone(node.getName());
+        if (!isBelow(zone, serverZone))
+            return;
+
+        List<DomainName> nameservers = new ArrayList<>();
+        long expirationTime = Long.MAX_VALUE;
+        for (ResourceRecord record : response.getNameservers()) {
+            if (record.getType() != RecordType.NS || record.getNameResult() == null)
+                continue;
+            if (record.getName() == zone) {
+                nameservers.add(record.getNameResult());
+                expirationTime = Math.min(expirationTime, record.getExpirationTime());
+            }
+        }
+
+        List<InetAddress> glue = new ArrayList<>();
+        for (ResourceRecord record : response.getAdditional())
+            if (record.getType() == RecordType.A && nameservers.contains(record.getName())
+                    && record.getName().isSubdomainOf(serverZone))
+                glue.add(record.getInetResult());
+
+        if (delegations.size() >= MAX_ZONES)
+            purge();
+        Delegation referral = new Delegation(serverZone, nameservers, glue, expirationTime);
+        long now = System.currentTimeMillis();
+        delegations.merge(zone, referral, (existing, added) ->
+                existing.expirationTime > now && !serverZone.isSubdomainOf(existing.source) ? existing : added);
+    }
+
+    /** Returns true if a referral's zone is strictly below the zone of the server that sent it,
+     * i.e., if the referral leads closer to the queried name.
+     *
+     * @param zone       Zone delegated by the referral, or null if the response has none.
+     * @param serverZone Zone of the server that sent the referral.
+     */
+    public static boolean isBelow(DomainName zone, DomainName serverZone) {
+        return zone != null && zone != serverZone && zone.isSubdomainOf(serverZone);
+    }
+
+    /** Returns the deepest zone known to contain a name, and the addresses of its servers. Glue
+     * addresses come first, followed by the cached addresses of the zone's other nameservers
+     * (looked up without counting them as cache hits or misses).
+     *
+     * @param name       Name being resolved.
+     * @param rootServer Server returned, for the root zone, if no delegation is known for the name.
+     * @return The zone cut where the resolution of the name should start, with a non-empty list
+     * of addresses.
+     */
+    public ZoneCut closestCut(DomainName name, InetAddress rootServer) {
+        long now = System.currentTimeMillis();
+        for (DomainName zone = name; zone != null && !zone.isRoot(); zone = zone.getParent()) {
+            List<InetAddress> servers = addresses(zone, now);
+            if (!servers.isEmpty())
+                return new ZoneCut(zone, servers);
+        }
+        return new ZoneCut(DomainName.ROOT, Collections.singletonList(rootServer));
+    }
+
+    // Returns the addresses of the servers of a zone, empty if no delegation is known for the
+    // zone or if its delegation has expired, in which case it is removed.
+    private List<InetAddress> addresses(DomainName zone, long now) {
+        Delegation delegation = delegations.get(zone);
+        if (delegation == null)
+            return Collections.emptyList();
+        if (delegation.expirationTime <= now) {
+            delegations.remove(zone, delegation);
+            return Collections.emptyList();
+        }
+        return delegation.addresses(cache);
+    }
+
+    /** Removes all delegations, e.g., when the root server changes.
+     */
+    public void clear() {
+        delegations.clear();
+    }
+
+    // Removes expired delegations, then arbitrary ones if there are still too many.
+    private void purge() {
+        long now = System.currentTimeMillis();
+        delegations.values().removeIf(delegation -> delegation.expirationTime <= now);
+        Iterator<DomainName> zones = delegations.keySet().iterator();
+        while (delegations.size() >= MAX_ZONES && zones.hasNext()) {
+            zones.next();
+            zones.remove();
+        }
+    }
+
+    /** A zone and the addresses of its servers.
+     */
+    public static final class ZoneCut {
+
+        private final DomainName zone;
+        private final List<InetAddress> servers;
+
+        public ZoneCut(DomainName zone, List<InetAddress> servers) {
+            this.zone = zone;
+            this.servers = servers;
+        }
+
+        public DomainName getZone() {
+            return zone;
+        }
+
+        public List<InetAddress> getServers() {
+            return servers;
+        }
+    }
+
+    private static final class Delegation {
+
+        // Zone of the server the referral came from
+        private final DomainName source;
+        private final List<DomainName> nameservers;
+        private final List<InetAddress> glue;
+        private final long expirationTime;
+
+        private Delegation(DomainName source, List<DomainName> nameservers, List<InetAddress> glue, long expirationTime) {
+            this.source = source;
+            this.nameservers = nameservers;
+            this.glue = glue;
+            this.expirationTime = expirationTime;
+        }
+
+        private List<InetAddress> addresses(DNSCache cache) {
+            List<InetAddress> addresses = new ArrayList<>(glue);
+            for (DomainName nameserver : nameservers)
+                for (ResourceRecord record : cache.peekCachedResults(new DNSNode(nameserver, RecordType.A)))
+                    if (!addresses.contains(record.getInetResult()))
+                        addresses.add(record.getInetResult());
+            return addresses;
+        }
+    }
+}
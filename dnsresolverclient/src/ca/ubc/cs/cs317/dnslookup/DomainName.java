@@ -0,0 +1,263 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** Canonical representation of a domain name, used as the key of cached results. Names are
+ * normalized to lower case and kept in wire format: each name holds its first label, as bytes,
+ * and a reference to the name of its parent zone. Names are interned in a shared table, so each
+ * suffix (e.g., "com" or "amazonaws.com") exists only once in memory, all names form a trie of
+ * labels, and two names are equal only if they are the same object. The hash code is computed
+ * once, when the name is created.
+ *
+ * Interned names are only weakly referenced by the table, so names no longer used by the cache
+ * or by any resolution are garbage collected.
+ */
+public final class DomainName implements Comparable<DomainName>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int MAX_LABEL_LENGTH = 63;
+    public static final int MAX_WIRE_LENGTH = 255;
+
+    private static final int INTERN_SHARD_BITS = 6;
+    private static final Map<DomainName, WeakReference<DomainName>>[] INTERNED = newInternTable();
+
+    /** The root name, which has no labels and is represented as an empty string.
+     */
+    public static final DomainName ROOT = new DomainName(null, new byte[0]);
+
+    private final DomainName parent;
+    private final byte[] label;
+    private final int hash;
+    private final int wireLength;
+
+    private DomainName(DomainName parent, byte[] label) {
+        this.parent = parent;
+        this.label = label;
+        this.hash = parent == null ? 0 : 31 * parent.hash + Arrays.hashCode(label);
+        this.wireLength = parent == null ? 1 : parent.wireLength + 1 + label.length;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<DomainName, WeakReference<DomainName>>[] newInternTable() {
+        Map<DomainName, WeakReference<DomainName>>[] table = new Map[1 << INTERN_SHARD_BITS];
+        for (int i = 0; i < table.length; i++)
+            table[i] = new WeakHashMap<>();
+        return table;
+    }
+
+    /** Returns the canonical name for a host name in dotted form. A trailing dot is allowed,
+     * and the empty string (or ".") is the root.
+     *
+     * @param hostName Host name, such as "www.example.com".
+     * @return The interned, lower-case name.
+     * @throws IllegalArgumentException If a label is empty or too long, the name is too long, or
+     *                                  it has non-ASCII characters (internationalized names must
+     *                                  be given in their ASCII form, e.g., "xn--bcher-kva.example").
+     */
+    public static DomainName of(String hostName) {
+        DomainName name = ROOT;
+        int end = hostName.endsWith(".") ? hostName.length() - 1 : hostName.length();
+        while (end > 0) {
+            int begin = hostName.lastIndexOf('.', end - 1) + 1;
+            if (begin == end)
+                throw new IllegalArgumentException("Empty label in " + hostName);
+            byte[] label = new byte[end - begin];
+            for (int i = 0; i < label.length; i++) {
+                char c = hostName.charAt(begin + i);
+                if (c > 0x7f)
+                    throw new IllegalArgumentException("Non-ASCII character in " + hostName);
+                label[i] = lowerCase((byte) c);
+            }
+            name = name.child(label);
+            end = begin - 1;
+        }
+        return name;
+    }
+
+    /** Returns the canonical name made of a label, read from a buffer, followed by this name.
+     *
+     * @param buffer Buffer containing the label.
+     * @param offset Index of the first byte of the label (after its length byte).
+     * @param length Length of the label, in bytes.
+     * @return The interned, lower-case name.
+     * @throws IllegalArgumentException If the label or the resulting name is too long.
+     */
+    public DomainName child(ByteBuffer buffer, int offset, int length) {
+        byte[] label = new byte[length];
+        for (int i = 0; i < length; i++)
+            label[i] = lowerCase(buffer.get(offset + i));
+        return child(label);
+    }
+
+    private DomainName child(byte[] label) {
+        if (label.length > MAX_LABEL_LENGTH)
+            throw new IllegalArgumentException("Label longer than " + MAX_LABEL_LENGTH + " bytes");
+        if (wireLength + 1 + label.length > MAX_WIRE_LENGTH)
+            throw new IllegalArgumentException("Name longer than " + MAX_WIRE_LENGTH + " bytes");
+        return intern(new DomainName(this, label));
+    }
+
+    private static DomainName intern(DomainName candidate) {
+        Map<DomainName, WeakReference<DomainName>> shard =
+                INTERNED[(candidate.hash * 0x9E3779B9) >>> (32 - INTERN_SHARD_BITS)];
+        synchronized (shard) {
+            WeakReference<DomainName> reference = shard.get(candidate);
+            DomainName existing = reference == null ? null : reference.get();
+            if (existing != null)
+                return existing;
+            shard.put(candidate, new WeakReference<>(candidate));
+            return candidate;
+        }
+    }
+
+    private static byte lowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /** Returns the name of the parent zone (e.g., "example.com" for "www.example.com"), or null
+     * for the root.
+     */
+    public DomainName getParent() {
+        return parent;
+    }
+
+    public boolean isRoot() {
+        return parent == null;
+    }
+
+    /** Returns true if this name is the same as, or a subdomain of, the specified name.
+     */
+    public boolean isSubdomainOf(DomainName ancestor) {
+        for (DomainName name = this; name != null; name = name.parent)
+            if (name == ancestor)
+                return true;
+        return false;
+    }
+
+    /** Length of this name in wire format, including the final empty label.
+     */
+    public int getWireLength() {
+        return wireLength;
+    }
+
+    /** Writes this name, in uncompressed wire format, at the buffer's position.
+     *
+     * @param buffer Buffer where the name is written.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (DomainName name = this; name.parent != null; name = name.parent) {
+            buffer.put((byte) name.label.length);
+            buffer.put(name.label);
+        }
+        buffer.put((byte) 0);
+    }
+
+    /** Reads a name, in uncompressed wire format, at the buffer's position, and moves the
+     * position past it.
+     *
+     * @param buffer Buffer containing the name, as written by writeTo.
+     * @return The interned, lower-case name.
+     * @throws IllegalArgumentException If the name is longer than the maximum length.
+     */
+    public static DomainName readFrom(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = start;
+        int length;
+        while ((length = buffer.get(end) & 0xff) != 0) {
+            if (length > MAX_LABEL_LENGTH || end - start + length + 2 > MAX_WIRE_LENGTH)
+                throw new IllegalArgumentException("Invalid name in wire format");
+            end += length + 1;
+        }
+        buffer.position(end + 1);
+        return readLabels(buffer, start, end);
+    }
+
+    // Builds the name made of the labels between start and end, from the last label up.
+    private static DomainName readLabels(ByteBuffer buffer, int start, int end) {
+        if (start == end)
+            return ROOT;
+        int length = buffer.get(start) & 0xff;
+        return readLabels(buffer, start + length + 1, end).child(buffer, start + 1, length);
+    }
+
+    // Names are interned, so only the first instance of each name is ever used.
+    private Object readResolve() {
+        return parent == null ? ROOT : intern(this);
+    }
+
+    /** Structural equality, used to intern names. Interned names are equal only to themselves.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DomainName name = (DomainName) o;
+        return hash == name.hash && parent == name.parent && Arrays.equals(label, name.label);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /** Returns the name in dotted form, without a trailing dot. The string is built on each
+     * call, as it is only needed for printing.
+     */
+    @Override
+    public String toString() {
+        if (parent == null)
+            return "";
+        StringBuilder builder = new StringBuilder(wireLength);
+        for (DomainName name = this; name.parent != null; name = name.parent) {
+            if (name != this)
+                builder.append('.');
+            for (byte b : name.label)
+                builder.append((char) (b & 0xff));
+        }
+        return builder.toString();
+    }
+
+    /** Orders names as their dotted forms would be ordered, comparing their labels byte by byte
+     * without building the strings.
+     */
+    @Override
+    public int compareTo(DomainName o) {
+        if (this == o)
+            return 0;
+        DomainName name = this, other = o;
+        int index = 0, otherIndex = 0;
+        while (true) {
+            int c = charAt(name, index);
+            int otherC = charAt(other, otherIndex);
+            if (c != otherC)
+                return c - otherC;
+            if (c < 0)
+                return 0;
+            if (index++ == name.label.length) {
+                name = name.parent;
+                index = 0;
+            }
+            if (otherIndex++ == other.label.length) {
+                other = other.parent;
+                otherIndex = 0;
+            }
+        }
+    }
+
+    // Character of the dotted form at an index of a name's first label: a byte of the label,
+    // the dot that follows it, or -1 at the end of the dotted form.
+    private static int charAt(DomainName name, int index) {
+        if (name.parent == null)
+            return -1;
+        if (index < name.label.length)
+            return name.label[index] & 0xff;
+        return name.parent.parent == null ? -1 : '.';
+    }
+}
@@ -0,0 +1,72 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** EDNS(0) settings (RFC 6891) shared by all transports. Queries sent over UDP carry an OPT
+ * pseudo-record advertising how large a response the resolver can receive, so servers do not
+ * truncate answers larger than 512 bytes. The default size, 1232 bytes, avoids IP fragmentation
+ * on almost every path.
+ *
+ * A server that rejects EDNS (it responds with FORMERR or NOTIMP and no OPT record) is queried
+ * again without it, and is remembered, so that later queries to it are sent without EDNS right
+ * away.
+ */
+public class Edns {
+
+    public static final int DEFAULT_PAYLOAD_SIZE = 1232;
+    public static final int MIN_PAYLOAD_SIZE = 512;
+    public static final int MAX_PAYLOAD_SIZE = 4096;
+
+    /** Size of the buffers receiving UDP responses: one byte more than the largest payload
+     * size, so that a response filling a buffer is known to have been cut off.
+     */
+    public static final int RECEIVE_BUFFER_SIZE = MAX_PAYLOAD_SIZE + 1;
+
+    private static Edns instance = new Edns();
+
+    private final Set<InetAddress> rejectingServers = ConcurrentHashMap.newKeySet();
+    private volatile int payloadSize = DEFAULT_PAYLOAD_SIZE;
+
+    private Edns() {
+    }
+
+    public static Edns getInstance() {
+        return instance;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /** Sets the UDP payload size advertised in queries.
+     *
+     * @param payloadSize Size in bytes, between MIN_PAYLOAD_SIZE and MAX_PAYLOAD_SIZE, or 0 to
+     *                    send queries without EDNS.
+     */
+    public void setPayloadSize(int payloadSize) {
+        if (payloadSize != 0 && (payloadSize < MIN_PAYLOAD_SIZE || payloadSize > MAX_PAYLOAD_SIZE))
+            throw new IllegalArgumentException("EDNS payload size must be 0 or between " + MIN_PAYLOAD_SIZE
+                    + " and " + MAX_PAYLOAD_SIZE);
+        this.payloadSize = payloadSize;
+    }
+
+    /** Returns the payload size to advertise in a query to a server.
+     *
+     * @param server Address of the server.
+     * @return The payload size, or 0 if the query must be sent without EDNS.
+     */
+    public int payloadSizeFor(InetAddress server) {
+        return rejectingServers.contains(server) ? 0 : payloadSize;
+    }
+
+    /** Records that a server rejected a query with EDNS, so that it is queried without EDNS from
+     * now on.
+     *
+     * @param server Address of the server.
+     */
+    public void recordRejection(InetAddress server) {
+        rejectingServers.add(server);
+    }
+}
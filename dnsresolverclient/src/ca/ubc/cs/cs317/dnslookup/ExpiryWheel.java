@@ -0,0 +1,138 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/** Hierarchical timing wheel used to expire cached resource records in the background. Time is
+ * divided in ticks of one second. The first level of the wheel has one slot per tick for the
+ * next 64 ticks, and each following level covers 64 times the range of the previous one with
+ * slots that are 64 times as wide. When the lower level wraps around, the entries in the next
+ * slot of the level above are redistributed to lower levels (cascading). Scheduling a record and
+ * advancing the wheel by one tick are both amortized O(1), regardless of the number of records.
+ *
+ * Records are handed to the listener once their expiration time has passed. The wheel does not
+ * track whether a record is still in the cache, so the listener must check whether a record has
+ * been replaced or removed in the meantime.
+ */
+final class ExpiryWheel {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 5;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final List<ResourceRecord>[][] wheel;
+    private final Consumer<ResourceRecord> listener;
+    private long currentTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ExpiryWheel(Consumer<ResourceRecord> listener) {
+        this.listener = listener;
+        this.wheel = new List[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++)
+            for (int slot = 0; slot < SLOTS; slot++)
+                wheel[level][slot] = new ArrayList<>();
+        this.currentTick = System.currentTimeMillis() / TICK_MILLIS;
+    }
+
+    /** Starts a daemon thread that advances the wheel once per tick.
+     */
+    void start() {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> advance(System.currentTimeMillis()),
+                TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Schedules a record to be handed to the listener once it expires.
+     *
+     * @param record Record to be expired.
+     */
+    synchronized void schedule(ResourceRecord record) {
+        long expirationTick = (record.getExpirationTime() + TICK_MILLIS - 1) / TICK_MILLIS;
+        place(record, Math.max(expirationTick, currentTick + 1));
+    }
+
+    private void place(ResourceRecord record, long tick) {
+        long delta = Math.min(tick - currentTick, MAX_DELTA);
+        tick = currentTick + delta;
+        int level = 0;
+        while (delta >= SLOTS && level < LEVELS - 1) {
+            delta >>>= SLOT_BITS;
+            level++;
+        }
+        wheel[level][(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK].add(record);
+    }
+
+    /** Removes and returns up to the specified number of records among those that expire the
+     * soonest. Slots are visited in expiration order, so records in the first level are returned
+     * in the order of their expiration tick, while records in higher levels are only ordered by
+     * the range of ticks their slot covers. Records that are not removed from the cache must be
+     * scheduled again by the caller.
+     *
+     * @param count Maximum number of records to be returned.
+     * @return The records removed from the wheel.
+     */
+    synchronized List<ResourceRecord> pollEarliest(int count) {
+        List<ResourceRecord> polled = new ArrayList<>(count);
+        for (int level = 0; level < LEVELS && polled.size() < count; level++) {
+            long base = currentTick >>> (SLOT_BITS * level);
+            for (int i = 1; i <= SLOTS && polled.size() < count; i++) {
+                List<ResourceRecord> slot = wheel[level][(int) (base + i) & SLOT_MASK];
+                while (!slot.isEmpty() && polled.size() < count)
+                    polled.add(slot.remove(slot.size() - 1));
+            }
+        }
+        return polled;
+    }
+
+    /** Advances the wheel up to the specified time, handing every record that expired in the
+     * meantime to the listener. The listener is called without holding the wheel's lock, so it
+     * may schedule records again. A record the listener fails on is reported and skipped, so
+     * that the other records, and the following ticks, are still expired.
+     *
+     * @param now Current time, in milliseconds since the epoch.
+     */
+    void advance(long now) {
+        List<ResourceRecord> due = new ArrayList<>();
+        synchronized (this) {
+            long targetTick = now / TICK_MILLIS;
+            while (currentTick < targetTick) {
+                currentTick++;
+                cascade(1);
+                List<ResourceRecord> slot = wheel[0][(int) currentTick & SLOT_MASK];
+                due.addAll(slot);
+                slot.clear();
+            }
+        }
+        for (ResourceRecord record : due) {
+            try {
+                listener.accept(record);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Moves the entries of the current slot in the specified level down, once every level below
+    // it has wrapped around.
+    private void cascade(int level) {
+        if (level >= LEVELS || (currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+            return;
+        cascade(level + 1);
+        List<ResourceRecord> slot = wheel[level][(int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK];
+        List<ResourceRecord> entries = new ArrayList<>(slot);
+        slot.clear();
+        for (ResourceRecord record : entries)
+            place(record, Math.max((record.getExpirationTime() + TICK_MILLIS - 1) / TICK_MILLIS, currentTick));
+    }
+}
@@ -0,0 +1,75 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Approximate, bounded-memory popularity counter used by the cache's eviction policy (as in
+ * TinyLFU). It is a count-min sketch of 4-bit counters packed sixteen to a long. Each key is
+ * counted in four counters and its frequency is the smallest of them. Once the number of
+ * increments reaches ten times the table size, all counters are halved, so that keys that
+ * were popular a long time ago do not stay popular forever.
+ *
+ * Updates are not synchronized. Increments lost to races only make the estimate slightly lower,
+ * which is acceptable for an eviction hint.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /** Creates a sketch sized for approximately the specified number of distinct keys.
+     *
+     * @param expectedKeys Number of keys expected to be tracked, typically the cache capacity.
+     */
+    FrequencySketch(long expectedKeys) {
+        int length = Integer.highestOneBit((int) Math.max(16, Math.min(expectedKeys, 1 << 22)) - 1) << 1;
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    /** Increments the popularity of a key, unless all its counters are saturated.
+     *
+     * @param hash Hash of the key.
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            int index = (int) (h >>> 32) & tableMask;
+            int offset = (int) (h >>> 28) & 0x3c;
+            if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++size >= sampleSize)
+            reset();
+    }
+
+    /** Returns the estimated number of times a key was used, capped at 15.
+     *
+     * @param hash Hash of the key.
+     * @return The estimated popularity of the key.
+     */
+    int frequency(int hash) {
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            int index = (int) (h >>> 32) & tableMask;
+            int offset = (int) (h >>> 28) & 0x3c;
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    // Halves every counter, ageing the popularity of all keys.
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        size /= 2;
+    }
+}
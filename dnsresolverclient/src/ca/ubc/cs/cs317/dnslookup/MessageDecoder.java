@@ -0,0 +1,344 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/** Reusable decoder for DNS messages held in a ByteBuffer. The decoder is a cursor over the
+ * message: header fields are read directly from the buffer, and each call to nextRecord moves
+ * to the following resource record, exposing its fields without creating any object. Domain
+ * names are decoded, following compression pointers iteratively, straight into canonical
+ * DomainNames, only when a caller asks for one; names starting at the same position of the
+ * message are only decoded once.
+ *
+ * A decoder is not thread-safe. Each thread (or engine) parsing responses should use its own.
+ */
+public final class MessageDecoder {
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int NAME_CACHE_SIZE = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final int[] labelOffsets = new int[MAX_NAME_LENGTH / 2];
+    private final int[] cachedNameOffsets = new int[NAME_CACHE_SIZE];
+    private final DomainName[] cachedNames = new DomainName[NAME_CACHE_SIZE];
+
+    private ByteBuffer buffer;
+    private int start;
+    private int limit;
+    private int position;
+
+    // Current record
+    private int ownerOffset;
+    private int type;
+    private int recordClass;
+    private long ttl;
+    private int rdataOffset;
+    private int rdataLength;
+
+    /** Starts decoding the message between the buffer's position and its limit. The buffer's
+     * position and limit are not changed.
+     *
+     * @param buffer Buffer containing the message.
+     * @return This decoder.
+     */
+    public MessageDecoder wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        this.limit = buffer.limit();
+        if (limit - start < HEADER_LENGTH)
+            throw new IndexOutOfBoundsException("Message shorter than its header");
+        this.position = start + HEADER_LENGTH;
+        for (int i = 0; i < NAME_CACHE_SIZE; i++)
+            cachedNames[i] = null;
+        return this;
+    }
+
+    public int getId() {
+        return unsignedShort(start);
+    }
+
+    public boolean isAuthoritative() {
+        return (buffer.get(start + 2) & 0x4) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (buffer.get(start + 2) & 0x2) != 0;
+    }
+
+    public int getResponseCode() {
+        return buffer.get(start + 3) & 0xf;
+    }
+
+    public int getQuestionCount() {
+        return unsignedShort(start + 4);
+    }
+
+    public int getAnswerCount() {
+        return unsignedShort(start + 6);
+    }
+
+    public int getAuthorityCount() {
+        return unsignedShort(start + 8);
+    }
+
+    public int getAdditionalCount() {
+        return unsignedShort(start + 10);
+    }
+
+    /** Moves the cursor past the question section. Must be called once, before the first
+     * record is read.
+     */
+    public void skipQuestions() {
+        for (int i = getQuestionCount(); i > 0; i--)
+            position = skipName(position) + 4;
+    }
+
+    /** Moves the cursor to the next resource record and reads its fixed fields.
+     */
+    public void nextRecord() {
+        ownerOffset = position;
+        int offset = skipName(position);
+        type = unsignedShort(offset);
+        recordClass = unsignedShort(offset + 2);
+        ttl = buffer.getInt(offset + 4) & 0xffffffffL;
+        rdataLength = unsignedShort(offset + 8);
+        rdataOffset = offset + 10;
+        position = rdataOffset + rdataLength;
+        if (position > limit)
+            throw new IndexOutOfBoundsException("Record data beyond the end of the message");
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /** Returns the CLASS field of the current record. In an OPT pseudo-record, it holds the
+     * sender's UDP payload size (RFC 6891).
+     */
+    public int getRecordClass() {
+        return recordClass;
+    }
+
+    public long getTTL() {
+        return ttl;
+    }
+
+    public int getRdataLength() {
+        return rdataLength;
+    }
+
+    /** Returns the owner name of the current record.
+     */
+    public DomainName getName() {
+        return nameAt(ownerOffset);
+    }
+
+    /** Builds a resource record from the current record, using the reader for its type.
+     * Addresses are read directly from the raw bytes of A and AAAA records, as primitives, and
+     * names are decoded from NS, CNAME and PTR records. The data of MX, SOA, TXT and SRV records is
+     * converted to its presentation form, and the data of other types is kept as opaque bytes, in
+     * the generic form of RFC 3597 (e.g., "\# 2 abcd").
+     *
+     * @return A new resource record with the data of the current record.
+     * @throws UnknownHostException      If the data of an address record has an invalid length.
+     * @throws IndexOutOfBoundsException If the data of the record is malformed.
+     */
+    public ResourceRecord toResourceRecord() throws UnknownHostException {
+        RecordType recordType = RecordType.getByCode(type);
+        return READERS[recordType.ordinal()].read(this, recordType);
+    }
+
+    // Builds a record of a specific type from the current record.
+    private interface RdataReader {
+        ResourceRecord read(MessageDecoder decoder, RecordType type) throws UnknownHostException;
+    }
+
+    // Readers indexed by record type
+    private static final RdataReader[] READERS = new RdataReader[RecordType.values().length];
+
+    static {
+        READERS[RecordType.A.ordinal()] = MessageDecoder::readIPv4;
+        READERS[RecordType.AAAA.ordinal()] = MessageDecoder::readIPv6;
+        READERS[RecordType.NS.ordinal()] = MessageDecoder::readName;
+        READERS[RecordType.CNAME.ordinal()] = MessageDecoder::readName;
+        READERS[RecordType.PTR.ordinal()] = MessageDecoder::readName;
+        READERS[RecordType.MX.ordinal()] = (decoder, type) -> decoder.textRecord(type, decoder.mxText());
+        READERS[RecordType.SOA.ordinal()] = (decoder, type) -> decoder.textRecord(type, decoder.soaText());
+        READERS[RecordType.TXT.ordinal()] = (decoder, type) -> decoder.textRecord(type, decoder.txtText());
+        READERS[RecordType.SRV.ordinal()] = (decoder, type) -> decoder.textRecord(type, decoder.srvText());
+        READERS[RecordType.OTHER.ordinal()] = (decoder, type) -> decoder.textRecord(type, decoder.opaqueText());
+    }
+
+    private ResourceRecord readIPv4(RecordType recordType) throws UnknownHostException {
+        if (rdataLength != 4)
+            throw new UnknownHostException("Invalid IPv4 address length: " + rdataLength);
+        return new ResourceRecord(getName(), recordType, ttl, buffer.getInt(rdataOffset));
+    }
+
+    private ResourceRecord readIPv6(RecordType recordType) throws UnknownHostException {
+        if (rdataLength != 16)
+            throw new UnknownHostException("Invalid IPv6 address length: " + rdataLength);
+        return new ResourceRecord(getName(), recordType, ttl,
+                buffer.getLong(rdataOffset), buffer.getLong(rdataOffset + 8));
+    }
+
+    private ResourceRecord readName(RecordType recordType) {
+        return new ResourceRecord(getName(), recordType, ttl, nameAt(rdataOffset));
+    }
+
+    private ResourceRecord textRecord(RecordType recordType, String text) {
+        // The type code is kept, as records of unknown types are all OTHER
+        return new ResourceRecord(getName(), type, ttl, text);
+    }
+
+    /** Returns the MINIMUM field of the current record, if it is a well-formed SOA record. It is
+     * the TTL of negative responses from the record's zone (RFC 2308).
+     *
+     * @return The MINIMUM field, or -1 if the record is not an SOA record or its data does not
+     * hold two names followed by the five numeric fields.
+     */
+    public long getSoaMinimum() {
+        // Two names of at least one byte each, and five 32-bit fields
+        if (type != RecordType.SOA.getCode() || rdataLength < 22)
+            return -1;
+        try {
+            if (skipName(skipName(rdataOffset)) + 20 != rdataOffset + rdataLength)
+                return -1;
+        } catch (IndexOutOfBoundsException e) {
+            return -1;
+        }
+        return buffer.getInt(rdataOffset + rdataLength - 4) & 0xffffffffL;
+    }
+
+    // Presentation form of the current SOA record: both names, then the five numeric fields.
+    private String soaText() {
+        int rnameOffset = skipName(rdataOffset);
+        int fieldsOffset = skipName(rnameOffset);
+        if (fieldsOffset + 20 != rdataOffset + rdataLength)
+            throw new IndexOutOfBoundsException("Invalid SOA record length: " + rdataLength);
+        StringBuilder text = new StringBuilder(64);
+        text.append(nameAt(rdataOffset)).append(' ').append(nameAt(rnameOffset));
+        for (int offset = fieldsOffset; offset < fieldsOffset + 20; offset += 4)
+            text.append(' ').append(buffer.getInt(offset) & 0xffffffffL);
+        return text.toString();
+    }
+
+    // Presentation form of the current MX record: preference, then exchange.
+    private String mxText() {
+        if (rdataLength < 3 || skipName(rdataOffset + 2) != rdataOffset + rdataLength)
+            throw new IndexOutOfBoundsException("Invalid MX record length: " + rdataLength);
+        return unsignedShort(rdataOffset) + " " + nameAt(rdataOffset + 2);
+    }
+
+    // Presentation form of the current SRV record: priority, weight, port, then target.
+    private String srvText() {
+        if (rdataLength < 7 || skipName(rdataOffset + 6) != rdataOffset + rdataLength)
+            throw new IndexOutOfBoundsException("Invalid SRV record length: " + rdataLength);
+        return unsignedShort(rdataOffset) + " " + unsignedShort(rdataOffset + 2) + " "
+                + unsignedShort(rdataOffset + 4) + " " + nameAt(rdataOffset + 6);
+    }
+
+    // Presentation form of the current TXT record: each character-string in quotes, with quotes,
+    // backslashes and non-printable bytes escaped as in master files.
+    private String txtText() {
+        StringBuilder text = new StringBuilder(rdataLength + 8);
+        int end = rdataOffset + rdataLength;
+        for (int offset = rdataOffset; offset < end; ) {
+            int length = buffer.get(offset++) & 0xff;
+            if (offset + length > end)
+                throw new IndexOutOfBoundsException("Invalid TXT record length: " + rdataLength);
+            if (text.length() > 0)
+                text.append(' ');
+            text.append('"');
+            for (int i = 0; i < length; i++) {
+                int b = buffer.get(offset + i) & 0xff;
+                if (b == '"' || b == '\\')
+                    text.append('\\').append((char) b);
+                else if (b < 0x20 || b > 0x7e)
+                    text.append('\\').append((char) ('0' + b / 100)).append((char) ('0' + b / 10 % 10))
+                            .append((char) ('0' + b % 10));
+                else
+                    text.append((char) b);
+            }
+            text.append('"');
+            offset += length;
+        }
+        return text.toString();
+    }
+
+    // Generic form of the current record's data (RFC 3597): its length and its bytes in hex.
+    private String opaqueText() {
+        StringBuilder text = new StringBuilder(8 + 2 * rdataLength);
+        text.append("\\# ").append(rdataLength);
+        if (rdataLength > 0)
+            text.append(' ');
+        for (int i = 0; i < rdataLength; i++) {
+            int b = buffer.get(rdataOffset + i) & 0xff;
+            text.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return text.toString();
+    }
+
+    /** Decodes the name at a specific offset of the buffer. Leading compression pointers are
+     * followed first, so that names starting at the same labels are looked up only once. The
+     * offsets of all labels are collected first, since names are built from the root down.
+     */
+    private DomainName nameAt(int offset) {
+        int hops = 0;
+        int length;
+        while (((length = buffer.get(offset) & 0xff) & 0xc0) == 0xc0) {
+            offset = pointerTarget(offset, ++hops);
+        }
+        int slot = offset & (NAME_CACHE_SIZE - 1);
+        if (cachedNames[slot] != null && cachedNameOffsets[slot] == offset)
+            return cachedNames[slot];
+
+        int labels = 0;
+        int current = offset;
+        while (true) {
+            length = buffer.get(current) & 0xff;
+            if ((length & 0xc0) == 0xc0) {
+                current = pointerTarget(current, ++hops);
+                continue;
+            }
+            if (length == 0)
+                break;
+            if (labels == labelOffsets.length)
+                throw new IndexOutOfBoundsException("Name longer than " + MAX_NAME_LENGTH + " bytes");
+            labelOffsets[labels++] = current;
+            current += length + 1;
+        }
+
+        DomainName decoded = DomainName.ROOT;
+        while (labels > 0) {
+            int labelOffset = labelOffsets[--labels];
+            decoded = decoded.child(buffer, labelOffset + 1, buffer.get(labelOffset) & 0xff);
+        }
+        cachedNameOffsets[slot] = offset;
+        cachedNames[slot] = decoded;
+        return decoded;
+    }
+
+    // Returns the offset a compression pointer refers to, rejecting pointer loops.
+    private int pointerTarget(int offset, int hops) {
+        if (hops > MAX_NAME_LENGTH / 2)
+            throw new IndexOutOfBoundsException("Compression pointer loop");
+        return start + (unsignedShort(offset) & 0x3fff);
+    }
+
+    // Returns the offset just after the name starting at the specified offset.
+    private int skipName(int offset) {
+        int length;
+        while ((length = buffer.get(offset) & 0xff) != 0) {
+            if ((length & 0xc0) == 0xc0)
+                return offset + 2;
+            offset += length + 1;
+        }
+        return offset + 1;
+    }
+
+    private int unsignedShort(int offset) {
+        return buffer.getShort(offset) & 0xffff;
+    }
+}
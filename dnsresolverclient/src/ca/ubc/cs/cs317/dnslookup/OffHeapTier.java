@@ -0,0 +1,268 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Second tier of the DNS cache, holding records outside of the Java heap. Records evicted from
+ * the cache are serialized into a ring log made of fixed-size segments, which are either direct
+ * buffers or regions of a memory-mapped file. Each entry of the log contains all the records of
+ * a node, and an open-addressing index, keyed by the node's hash, links each node to its latest
+ * entry. Only the index (an int and a long per node) is kept on the heap.
+ *
+ * Entries are never updated in place: adding a record to a node appends a new entry with all of
+ * its records, and the previous one becomes garbage. When the log wraps around, the oldest
+ * segment is reused as a whole, and the nodes whose entries were in it are dropped from the
+ * index. The tier thus behaves as a FIFO of evicted nodes, bounded by its capacity.
+ *
+ * All methods are synchronized. The tier is only used on misses of the on-heap cache, which are
+ * usually followed by a query to a server, so contention is not a concern.
+ */
+final class OffHeapTier implements Closeable {
+
+    private static final int MAX_SEGMENT_SIZE = 1 << 26;
+    private static final int MIN_SEGMENT_COUNT = 4;
+    private static final int INITIAL_INDEX_SIZE = 1 << 10;
+
+    // Entry header: total length, node hash and number of records
+    private static final int ENTRY_HEADER = 4 + 4 + 2;
+
+    // Index slot values other than an entry's log position (stored plus one)
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -1;
+
+    private final ByteBuffer[] segments;
+    private final int segmentSize;
+    private final long capacity;
+    private final FileChannel file;
+
+    private long tail;
+    private int[] hashes = new int[INITIAL_INDEX_SIZE];
+    private long[] positions = new long[INITIAL_INDEX_SIZE];
+    private int usedSlots;
+    private int entryCount;
+    private long spilledCount;
+    private long promotedCount;
+
+    /** Creates a tier of the specified capacity.
+     *
+     * @param capacity Maximum number of bytes used by the log.
+     * @param path     File to be mapped into memory to hold the log, or null to use direct
+     *                 buffers instead. The file is only used as backing storage and is deleted
+     *                 when the tier is closed.
+     * @throws IOException If the file could not be created or mapped.
+     */
+    OffHeapTier(long capacity, Path path) throws IOException {
+        int segmentCount = (int) Math.max(MIN_SEGMENT_COUNT, (capacity + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE);
+        this.segmentSize = (int) Math.max(ENTRY_HEADER, capacity / segmentCount);
+        this.capacity = (long) segmentSize * segmentCount;
+        this.segments = new ByteBuffer[segmentCount];
+        if (path == null) {
+            this.file = null;
+            for (int i = 0; i < segmentCount; i++)
+                segments[i] = ByteBuffer.allocateDirect(segmentSize);
+        } else {
+            this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.DELETE_ON_CLOSE);
+            try {
+                for (int i = 0; i < segmentCount; i++)
+                    segments[i] = file.map(FileChannel.MapMode.READ_WRITE, (long) i * segmentSize, segmentSize);
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        }
+    }
+
+    /** Adds a record evicted from the on-heap cache. Expired records are ignored, and so are
+     * records of nodes whose entry would not fit in a segment.
+     *
+     * @param record Record to be added.
+     */
+    synchronized void spill(ResourceRecord record) {
+        long now = System.currentTimeMillis();
+        if (record.getExpirationTime() <= now)
+            return;
+
+        DNSNode node = record.getNode();
+        int hash = node.hashCode();
+        List<ResourceRecord> records = new ArrayList<>();
+        int slot = find(node, hash, records);
+        // Expired records are dropped, and an equivalent record is replaced by the new one
+        records.removeIf(existing -> existing.getExpirationTime() <= now || existing.equals(record));
+        records.add(record);
+        if (slot >= 0) {
+            positions[slot] = REMOVED;
+            entryCount--;
+        }
+        if (append(hash, records))
+            spilledCount++;
+    }
+
+    /** Removes and returns the records of a node, so that they can be moved back to the
+     * on-heap cache. Expired records are not returned.
+     *
+     * @param node Node whose records are requested.
+     * @return A potentially empty list with the valid records of the node.
+     */
+    synchronized List<ResourceRecord> take(DNSNode node) {
+        List<ResourceRecord> records = new ArrayList<>();
+        int slot = find(node, node.hashCode(), records);
+        if (slot < 0)
+            return records;
+        positions[slot] = REMOVED;
+        entryCount--;
+        long now = System.currentTimeMillis();
+        records.removeIf(record -> record.getExpirationTime() <= now);
+        promotedCount += records.size();
+        return records;
+    }
+
+    /** Number of nodes currently stored in this tier.
+     */
+    synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    /** Number of records added to this tier so far.
+     */
+    synchronized long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /** Number of records moved back to the on-heap cache so far.
+     */
+    synchronized long getPromotedCount() {
+        return promotedCount;
+    }
+
+    // Returns the index slot of a node's entry, adding its records to the list, or -1 if the
+    // node has no entry.
+    private int find(DNSNode node, int hash, List<ResourceRecord> records) {
+        int mask = hashes.length - 1;
+        for (int slot = indexOf(hash, mask); positions[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (positions[slot] == REMOVED || hashes[slot] != hash)
+                continue;
+            int start = records.size();
+            read(positions[slot] - 1, records);
+            if (records.get(start).getName() == node.getName() && records.get(start).getType() == node.getType())
+                return slot;
+            // Another node with the same hash
+            records.subList(start, records.size()).clear();
+        }
+        return -1;
+    }
+
+    private static int indexOf(int hash, int mask) {
+        int mixed = hash * 0x9E3779B9;
+        return (mixed ^ mixed >>> 16) & mask;
+    }
+
+    private void read(long position, List<ResourceRecord> records) {
+        ByteBuffer segment = segmentAt(position);
+        segment.position((int) (position % segmentSize) + 8);
+        int count = segment.getShort() & 0xffff;
+        for (int i = 0; i < count; i++)
+            records.add(ResourceRecord.readFrom(segment));
+    }
+
+    private ByteBuffer segmentAt(long position) {
+        return segments[(int) (position % capacity / segmentSize)];
+    }
+
+    // Writes an entry at the end of the log and adds it to the index.
+    private boolean append(int hash, List<ResourceRecord> records) {
+        long length = ENTRY_HEADER;
+        for (ResourceRecord record : records)
+            length += record.serializedSize();
+        if (length > segmentSize || records.size() > 0xffff)
+            return false;
+
+        int offset = (int) (tail % segmentSize);
+        if (offset + length > segmentSize) {
+            tail += segmentSize - offset;
+            offset = 0;
+        }
+        if (offset == 0 && tail >= capacity)
+            reclaim(tail - capacity);
+
+        ByteBuffer segment = segmentAt(tail);
+        segment.position(offset);
+        try {
+            segment.putInt((int) length).putInt(hash).putShort((short) records.size());
+            for (ResourceRecord record : records)
+                record.writeTo(segment);
+        } catch (BufferOverflowException e) {
+            // Only if a size estimate is wrong; the entry is not indexed
+            return false;
+        }
+        insert(hash, tail);
+        tail += length;
+        return true;
+    }
+
+    // Drops from the index all entries of the segment about to be overwritten, which starts at
+    // the specified log position.
+    private void reclaim(long segmentStart) {
+        long segmentEnd = segmentStart + segmentSize;
+        for (int slot = 0; slot < positions.length; slot++) {
+            long position = positions[slot] - 1;
+            if (position >= segmentStart && position < segmentEnd) {
+                positions[slot] = REMOVED;
+                entryCount--;
+            }
+        }
+    }
+
+    private void insert(int hash, long position) {
+        if (2 * (usedSlots + 1) > hashes.length)
+            rebuildIndex();
+        int mask = hashes.length - 1;
+        int slot = indexOf(hash, mask);
+        while (positions[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+        hashes[slot] = hash;
+        positions[slot] = position + 1;
+        usedSlots++;
+        entryCount++;
+    }
+
+    // Rebuilds the index without its removed slots, doubling its size if it is mostly in use.
+    private void rebuildIndex() {
+        int[] oldHashes = hashes;
+        long[] oldPositions = positions;
+        int size = 4 * entryCount > oldHashes.length ? 2 * oldHashes.length : oldHashes.length;
+        hashes = new int[size];
+        positions = new long[size];
+        int mask = size - 1;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldPositions[i] == EMPTY || oldPositions[i] == REMOVED)
+                continue;
+            int slot = indexOf(oldHashes[i], mask);
+            while (positions[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            hashes[slot] = oldHashes[i];
+            positions[slot] = oldPositions[i];
+        }
+        usedSlots = entryCount;
+    }
+
+    /** Releases the file backing this tier, if any. Direct buffers are released once they are
+     * garbage collected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (file != null)
+            file.close();
+    }
+}
@@ -1,38 +1,37 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.ByteArrayOutputStream;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class QueryPacketBuilder {
-    //This function constructs the entire DNS query message and writes it to ByteArrayOutPutStream buf
-    // and converts buf to a byte array queryBytes
-    // Finally, the function returns a datagram packet with the following values: the byte array queryBytes, 0 offset,
-    // the length of QueryBytes, the server and the defaultDnsport
-    static DatagramPacket formRequestPacketFromNode(int queryID,DNSNode node,InetAddress server,ByteArrayOutputStream buf,int defaultDnsPort) {
-        // SET HEADER
+    // Header, longest QNAME, QTYPE and QCLASS, OPT pseudo-record
+    static final int MAX_QUERY_LENGTH=12 + DomainName.MAX_WIRE_LENGTH + 4 + 11;
 
-        // Use random to generate query ID
-        // covert integer queryID to bytes, in big endian
+    // Type of the EDNS pseudo-record (RFC 6891)
+    private static final int OPT=41;
 
-        byte firstByte=(byte) ((queryID & 0xff00) >>> 8);
-        buf.write(firstByte);
+    //This function constructs the entire DNS query message and writes it at the buffer's position,
+    // which is moved past the message. The buffer must have at least MAX_QUERY_LENGTH bytes remaining.
+    // QNAME labels are copied from the node's DomainName as they are, without splitting or converting the host name,
+    // so a buffer can be reused for any number of queries without allocating.
+    // If the payload size is not 0, an OPT pseudo-record advertising it is added (EDNS, RFC 6891).
+    static void writeQuery(ByteBuffer buffer,int queryID,DNSNode node,int ednsPayloadSize) {
+        // SET HEADER
 
-        byte secondByte=(byte) queryID;
-        buf.write(secondByte);
+        // query ID, in big endian
+        buffer.putShort((short) queryID);
 
         // |QR|   Opcode  |AA|TC|RD| byte setup
         // QR bit will be 0 since we are sending the query
         // opcode is 0 since we are sending standard query
         // AA is zero
         // TC and RD are both zero as per the assignment
-        buf.write(0x0);
+        buffer.put((byte) 0x0);
 
         // |RA|   Z    |   RCODE   | byte setup
-        buf.write(0x0);
+        buffer.put((byte) 0x0);
 
-        buf.write(0x0);
-        buf.write(0x1);
+        // QDCOUNT
+        buffer.putShort((short) 1);
 
         // remaining fields setup in header part
         //|                    ANCOUNT                    |
@@ -40,39 +39,27 @@ public class QueryPacketBuilder {
         //|                    NSCOUNT                    |
         //+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+--+
         //|                    ARCOUNT                    |
-        buf.write(0x0);
-        buf.write(0x0);
-        buf.write(0x0);
-        buf.write(0x0);
-        buf.write(0x0);
-        buf.write(0x0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (ednsPayloadSize > 0 ? 1 : 0));
 
         //SET question QNAME
-        String hostName=node.getHostName();
-        String[] labels=hostName.split("\\.");
-        for (String a : labels) {
-            if(a.length() > 0){
-                buf.write(a.length());
-                char[] chars=a.toCharArray();
-                for (char ch : chars)
-                    buf.write(ch);
-            }
-        }
-        buf.write(0x0);
+        node.getName().writeTo(buffer);
 
-        //SET QTYPE
-        buf.write(0x0);
-        if (node.getType() == RecordType.A)
-            buf.write(0x1);
-        else
-            //28 is specified in RFC 3596
-            buf.write(28);
+        //SET QTYPE, the code of the record type (e.g., 28 for AAAA, as specified in RFC 3596)
+        buffer.putShort((short) node.getType().getCode());
 
         //SET QCLASS
-        buf.write(0x0);
-        buf.write(0x1);
+        buffer.putShort((short) 1);
 
-        byte[] queryBytes=buf.toByteArray();
-        return new DatagramPacket(queryBytes,0,queryBytes.length,server,defaultDnsPort);
+        //SET OPT in the additional section: root name, TYPE, payload size in CLASS,
+        // extended RCODE, version 0 and no flags in TTL, no options
+        if (ednsPayloadSize > 0) {
+            buffer.put((byte) 0);
+            buffer.putShort((short) OPT);
+            buffer.putShort((short) ednsPayloadSize);
+            buffer.putInt(0);
+            buffer.putShort((short) 0);
+        }
     }
-}
\ No newline at end of file
+}
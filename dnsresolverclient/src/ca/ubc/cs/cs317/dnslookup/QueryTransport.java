@@ -0,0 +1,46 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/** Sends a single query to a DNS server and waits for its response. Implementations decide how
+ * the query reaches the server (e.g., a dedicated socket, or a channel shared with other
+ * resolutions), and retry the query once if the server does not respond in time.
+ */
+public interface QueryTransport {
+
+    /** Sends a query for a node to a server and blocks until the matching response arrives.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param server Address of the server to be used for the query.
+     * @return The parsed response.
+     * @throws TimeoutTwiceException If the server did not respond to the query twice.
+     * @throws OtherIOException      If the query could not be sent or the response received.
+     */
+    DNSResponse query(DNSNode node, InetAddress server);
+
+    /** Sends a query for a node to one of several equivalent servers (e.g., the nameservers of a
+     * zone) and blocks until a response arrives. By default, servers are tried in order, moving
+     * to the next one only when a server does not respond; implementations may instead query
+     * several servers at the same time.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers, most preferred first. Must not be empty.
+     * @return The first response received.
+     * @throws TimeoutTwiceException If none of the servers responded.
+     * @throws OtherIOException      If the query could not be sent or the response received.
+     * @throws IllegalArgumentException If there are no servers.
+     */
+    default DNSResponse query(DNSNode node, List<InetAddress> servers) {
+        if (servers.isEmpty())
+            throw new IllegalArgumentException("No servers to query");
+        for (int i = 0; i < servers.size() - 1; i++) {
+            try {
+                return query(node, servers.get(i));
+            } catch (TimeoutTwiceException e) {
+                // Try the next server
+            }
+        }
+        return query(node, servers.get(servers.size() - 1));
+    }
+}
@@ -1,10 +1,24 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-/** Record types supported by the application. Includes a few common record types that are not
- * fully supported by this application.
+import java.util.Arrays;
+
+/** Record types supported by the application. The data of each of these types is decoded into
+ * a result (see MessageDecoder); records of any other type are represented as OTHER, with their
+ * data kept as opaque bytes and their type code kept by the record (see
+ * ResourceRecord.getTypeCode).
  */
 public enum RecordType {
-    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
+    A(1), NS(2), CNAME(5), SOA(6), PTR(12), MX(15), TXT(16), AAAA(28), SRV(33), OTHER(0);
+
+    // Record types indexed by code; codes with no known record type map to OTHER
+    private static final RecordType[] BY_CODE = new RecordType[256];
+
+    static {
+        Arrays.fill(BY_CODE, OTHER);
+        for (RecordType type : values())
+            if (type != OTHER)
+                BY_CODE[type.code] = type;
+    }
 
     private int code;
 
@@ -23,9 +37,13 @@ public enum RecordType {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordType getByCode(int code) {
-        for (RecordType type : values())
-            if (type.code == code)
-                return type;
-        return OTHER;
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : OTHER;
+    }
+
+    /** Returns true if the data of records of this type is a single domain name (NS, CNAME and
+     * PTR records), which is kept as a DomainName rather than as text.
+     */
+    public boolean hasNameResult() {
+        return this == NS || this == CNAME || this == PTR;
     }
 }
@@ -0,0 +1,270 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Iterative resolver holding the state of a single resolution (the transport used to reach
+ * servers, the root server and the tracing options), so that any number of resolutions can run
+ * at the same time on different threads. The resolution itself is plain blocking code: each
+ * query blocks the calling thread until its response arrives. Concurrent lookups of the same
+ * node, from any resolver, share a single resolution (see SingleFlight).
+ */
+public class Resolver {
+
+    private static final int MAX_INDIRECTION_LEVEL=10;
+
+    private final QueryTransport transport;
+    private final InetAddress rootServer;
+    private final PrintStream trace;
+    private final boolean verboseTracing;
+    private final AsyncResolver engine;
+
+    private final DNSCache cache=DNSCache.getInstance();
+    private final DelegationCache delegations=DelegationCache.getInstance();
+    private final SingleFlight flights=SingleFlight.getInstance();
+
+    /**
+     * @param transport      Transport used to send queries to servers.
+     * @param rootServer     Address of the root server, where resolutions start when no delegation is known.
+     * @param trace          Stream where responses are traced, or null for no tracing.
+     * @param verboseTracing If true, all the records of each response are traced as well.
+     */
+    public Resolver(QueryTransport transport,InetAddress rootServer,PrintStream trace,boolean verboseTracing) {
+        this(transport,rootServer,trace,verboseTracing,null);
+    }
+
+    /**
+     * @param transport      Transport used to send queries to servers.
+     * @param rootServer     Address of the root server, where resolutions start when no delegation is known.
+     * @param trace          Stream where responses are traced, or null for no tracing.
+     * @param verboseTracing If true, all the records of each response are traced as well.
+     * @param engine         Engine used to look up the addresses of several nameservers at the same time,
+     *                       or null to look them up one at a time with this resolver.
+     */
+    public Resolver(QueryTransport transport,InetAddress rootServer,PrintStream trace,boolean verboseTracing,
+                    AsyncResolver engine) {
+        this.transport=transport;
+        this.rootServer=rootServer;
+        this.trace=trace;
+        this.verboseTracing=trace != null && verboseTracing;
+        this.engine=engine;
+    }
+
+    /**
+     * Finds all the results for a specific node.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    public Set<ResourceRecord> getResults(DNSNode node) {
+        return getResults(node,0,null);
+    }
+
+    /**
+     * Looks up a node again, even if its records are cached, so that they are renewed before they expire. If a
+     * lookup of the node is already in progress, this waits for it instead. Used by the cache to refresh popular
+     * and stale nodes.
+     *
+     * @param node Host and record type to be looked up.
+     * @throws TimeoutTwiceException If a server did not respond.
+     */
+    public void refresh(DNSNode node) {
+        join(flights.join(node,null,flight -> CompletableFuture.completedFuture(lookup(node,0,flight))));
+    }
+
+    /**
+     * Finds all the result for a specific node.
+     *
+     * @param node             Host and record type to be used for search.
+     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
+     *                         The initial call should be made with 0 (zero), while recursive calls for
+     *                         regarding CNAME results should increment this value by the number of CNAME
+     *                         records followed. Once this value reaches MAX_INDIRECTION_LEVEL, the function
+     *                         prints an error message and returns an empty set.
+     * @param parent           Lookup on whose behalf this one is made, or null for the lookup requested by the user.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    private Set<ResourceRecord> getResults(DNSNode node,int indirectionLevel,SingleFlight.Flight parent) {
+
+        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
+            System.err.println("Maximum number of indirection levels reached.");
+            return Collections.emptySet();
+        }
+
+        // Memoization: first look up cache with the specified type
+        Set<ResourceRecord> wantedResourceRecords=cache.getCachedResults(node);
+
+        // If the set is non empty means we have answers of this query, return it
+        if (!wantedResourceRecords.isEmpty()) {
+            return wantedResourceRecords;
+        }
+
+        // A cached negative result (NXDOMAIN or NODATA) means there is nothing to look up
+        if (cache.isNegativelyCached(node)) {
+            return Collections.emptySet();
+        }
+
+        // If the name is a known alias, only the missing tail of its CNAME chain is resolved
+        CnameChain chain=CnameChain.follow(cache,node);
+        if (chain.getLength() > 0) {
+            return resolveChain(node,chain,indirectionLevel,parent);
+        }
+
+        // Join the lookup of the same node in progress in another thread, if any
+        return join(flights.join(node,parent,flight -> CompletableFuture.completedFuture(lookup(node,indirectionLevel,flight))));
+    }
+
+    // Waits for a lookup, rethrowing its failure (e.g., a TimeoutTwiceException) as is.
+    private static <T> T join(CompletableFuture<T> lookup) {
+        try {
+            return lookup.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    // Looks up a node on behalf of its flight. Unless it is a refresh, the node is not cached.
+    private Set<ResourceRecord> lookup(DNSNode node,int indirectionLevel,SingleFlight.Flight flight) {
+
+        // Perform a DNS lookup, starting at the deepest zone known for the name
+        DelegationCache.ZoneCut start=delegations.closestCut(node.getName(),rootServer);
+        retrieveResultsFromServer(node,start.getServers(),start.getZone(),flight);
+
+        // Get result again; this read is not a lookup of its own, so it is not counted as a cache hit
+        Set<ResourceRecord> wantedResourceRecords=cache.peekCachedResults(node);
+
+        // If it is still empty, it might be : 1. we found a CNAME answer in the previous retrieveResultsFromServer
+        // (possibly with part or all of its chain, and the records at its end) 2. we found nothing, we cannot resolve it(return empty).
+        if (wantedResourceRecords.isEmpty()) {
+            CnameChain chain=CnameChain.follow(cache,node);
+            if (chain.getLength() > 0) {
+                return resolveChain(node,chain,indirectionLevel,flight);
+            }
+        }
+        return wantedResourceRecords;
+
+    }
+
+    // Returns the results of an alias, resolving the missing tail of its chain if needed. The
+    // results take the shortest TTL of the chain.
+    private Set<ResourceRecord> resolveChain(DNSNode node,CnameChain chain,int indirectionLevel,SingleFlight.Flight flight) {
+        DNSNode tail=chain.getMissingTail();
+        if (tail == null) return chain.getResults(node);
+        return chain.getResults(node,getResults(tail,indirectionLevel + chain.getLength(),flight));
+    }
+
+    /**
+     * Retrieves DNS results from a set of equivalent DNS servers. Queries are sent in iterative
+     * mode, and the query is repeated with new servers if the response is non-authoritative.
+     * Results are stored in the cache. A referral that does not lead below the zone of the
+     * servers that sent it ends the lookup, as those servers are lame for the name.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers to be used for the query, most preferred first.
+     * @param zone    Zone the servers are authoritative for.
+     * @param flight  Lookup the query is made for.
+     */
+    private void retrieveResultsFromServer(DNSNode node,List<InetAddress> servers,DomainName zone,SingleFlight.Flight flight) {
+        // Send a data packet to server, on port 53
+        while (true) {
+
+            DNSResponse response=transport.query(node,servers);
+
+            // Parse the result and get hint on what to do next.
+            // We abstract the hints in a new class SingleQueryResult
+            SingleQueryResult parseResult=traceAndCacheResult(node,response,zone);
+
+            // If it is a AA, we finish since we find some "answers" although they might be CNAME.
+            if (parseResult.isAA()) {
+                return;
+            } else {
+                // else we still need to do it.
+                String nextHostToLookup=parseResult.getNexthosttolookup();
+                // Process ".ca" case
+                if (nextHostToLookup == null) break;
+                // Upward or sideways referral
+                DomainName referralZone=response.getReferralZone(node.getName());
+                if (!DelegationCache.isBelow(referralZone,zone)) return;
+                zone=referralZone;
+                if (!nextHostToLookup.equalsIgnoreCase(node.getHostName())) {
+                    // in this branch, the referral has no glue, so we need to find the IP of its name servers
+                    // before we can go back to previous query
+                    servers=getNameserverAddresses(response.getNameserverNames(),flight);
+                    if (servers.isEmpty()) return;
+                } else {
+                    // no need to switch gear, unless the additional records hold no address (e.g., AAAA-only
+                    // glue), in which case the name servers are resolved as if there was no glue
+                    servers=response.getReferralServers();
+                    if (servers.isEmpty()) servers=getNameserverAddresses(response.getNameserverNames(),flight);
+                    if (servers.isEmpty()) return;
+                }
+            }
+        }
+    }
+
+    // Helper, find the IPs of name servers. With an engine, several of them are resolved at the same time;
+    // otherwise (e.g., the interactive resolver, whose socket serializes queries and whose trace must stay
+    // in order) they are resolved one at a time until one of them has an address.
+    private List<InetAddress> getNameserverAddresses(List<DomainName> nameservers,SingleFlight.Flight flight) {
+        if (engine != null) return join(engine.resolveNameservers(nameservers,flight));
+        List<InetAddress> addresses=new ArrayList<>();
+        TimeoutTwiceException timeout=null;
+        for (DomainName name : nameservers) {
+            Set<ResourceRecord> nameserverRRs;
+            try {
+                nameserverRRs=getResults(new DNSNode(name,RecordType.A),0,flight);
+            } catch (TimeoutTwiceException e) {
+                timeout=e;
+                continue;
+            }
+            for (ResourceRecord rr : nameserverRRs)
+                addresses.add(rr.getInetResult());
+            if (!addresses.isEmpty()) return addresses;
+        }
+        if (timeout != null) throw timeout;
+        return addresses;
+    }
+
+    private SingleQueryResult traceAndCacheResult(DNSNode node,DNSResponse response,DomainName zone) {
+        // print response query ID, is authoritative or not, in one line like :
+        // e.g. Response ID: 54836 Authoritative = false
+        if (trace != null) {
+            trace.println("Response ID: " + response.getId() + " " + "Authoritative = " + response.isAuthoritative());
+
+            // Print answers, authoritative rrs and additional rrs, in the order they appear
+            printRRsOfThreeCategories("Answers",response.getAnswers());
+            printRRsOfThreeCategories("Nameservers",response.getNameservers());
+            printRRsOfThreeCategories("Additional Information",response.getAdditional());
+        }
+
+        response.cacheResults(cache,node,zone);
+        delegations.addReferral(node,response,zone);
+
+        // Start creating answer
+        return response.nextStep(node);
+    }
+
+    private void printRRsOfThreeCategories(String category,List<ResourceRecord> resourceRecordList) {
+        if (verboseTracing) {
+            trace.println("  " + category + " (" + resourceRecordList.size() + ")");
+            for (ResourceRecord record : resourceRecordList)
+                verbosePrintResourceRecord(record);
+        }
+    }
+
+    private void verbosePrintResourceRecord(ResourceRecord record) {
+        if (verboseTracing)
+            trace.format("       %-30s %-10d %-4s %s\n",record.getHostName(),
+                    record.getTTL(),
+                    record.getType() == RecordType.OTHER ? record.getTypeCode() : record.getType(),
+                    record.getTextResult());
+    }
+}
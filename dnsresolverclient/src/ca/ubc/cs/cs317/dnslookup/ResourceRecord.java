@@ -1,43 +1,185 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * Records are kept compact, as the cache may hold millions of them: the expiration time is a
+ * primitive, IPv4 addresses are kept as an int and IPv6 addresses as two longs, and host names
+ * and results that are domain names (NS, CNAME and PTR records) are references to canonical
+ * DomainNames, shared with every other record and node using the same name. The InetAddress and
+ * textual views of a result are created only when they are requested.
  */
 public class ResourceRecord implements Serializable {
 
-    private DNSNode node;
-    private Date expirationTime;
-    private String textResult;
-    private InetAddress inetResult;
+    private static final byte NO_ADDRESS = 0;
+    private static final byte IPV4 = 4;
+    private static final byte IPV6 = 16;
+
+    // Result kinds used by writeTo and readFrom
+    private static final byte RESULT_IPV4 = 1;
+    private static final byte RESULT_IPV6 = 2;
+    private static final byte RESULT_NAME = 3;
+    private static final byte RESULT_TEXT = 4;
+
+    private final DomainName name;
+    private final RecordType type;
+    // Type code found in the message, which only differs from the type's code for OTHER records
+    private final char typeCode;
+    private final long expirationTime;
+    private final byte addressKind;
+    private final int ipv4;
+    private final long ipv6High;
+    private final long ipv6Low;
+    private final DomainName nameResult;
+    private final String textResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this(DomainName.of(hostName), type, ttl, result);
     }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(DomainName.of(hostName), type, ttl, result);
+    }
+
+    public ResourceRecord(DomainName name, RecordType type, long ttl, String result) {
+        this(name, type.getCode(), ttl, result);
+    }
+
+    /** Creates a record of any type, given by its code. Records of types not known to the
+     * application are of type OTHER, and keep their type code.
+     *
+     * @param typeCode The record type code, between 0 and 65535.
+     */
+    public ResourceRecord(DomainName name, int typeCode, long ttl, String result) {
+        this(name, RecordType.getByCode(typeCode), typeCode, expirationFor(ttl), NO_ADDRESS, 0, 0, 0,
+                RecordType.getByCode(typeCode).hasNameResult() ? DomainName.of(result) : null,
+                RecordType.getByCode(typeCode).hasNameResult() ? null : result);
+    }
+
+    public ResourceRecord(DomainName name, RecordType type, long ttl, DomainName result) {
+        this(name, type, type.getCode(), expirationFor(ttl), NO_ADDRESS, 0, 0, 0, result, null);
+    }
+
+    public ResourceRecord(DomainName name, RecordType type, long ttl, InetAddress result) {
+        this(name, type, type.getCode(), expirationFor(ttl), result instanceof Inet4Address ? IPV4 : IPV6,
+                result instanceof Inet4Address ? toInt(result.getAddress(), 0) : 0,
+                result instanceof Inet4Address ? 0 : toLong(result.getAddress(), 0),
+                result instanceof Inet4Address ? 0 : toLong(result.getAddress(), 8),
+                null, null);
+    }
+
+    /** Creates a record whose result is an IPv4 address.
+     *
+     * @param address The address, in network byte order (e.g., 0x7f000001 for 127.0.0.1).
+     */
+    public ResourceRecord(DomainName name, RecordType type, long ttl, int address) {
+        this(name, type, type.getCode(), expirationFor(ttl), IPV4, address, 0, 0, null, null);
+    }
+
+    /** Creates a record whose result is an IPv6 address.
+     *
+     * @param addressHigh First eight bytes of the address, in network byte order.
+     * @param addressLow  Last eight bytes of the address, in network byte order.
+     */
+    public ResourceRecord(DomainName name, RecordType type, long ttl, long addressHigh, long addressLow) {
+        this(name, type, type.getCode(), expirationFor(ttl), IPV6, 0, addressHigh, addressLow, null, null);
     }
 
+    private ResourceRecord(DomainName name, RecordType type, int typeCode, long expirationTime, byte addressKind,
+                           int ipv4, long ipv6High, long ipv6Low, DomainName nameResult, String textResult) {
+        this.name = name;
+        this.type = type;
+        this.typeCode = (char) typeCode;
+        this.expirationTime = expirationTime;
+        this.addressKind = addressKind;
+        this.ipv4 = ipv4;
+        this.ipv6High = ipv6High;
+        this.ipv6Low = ipv6Low;
+        this.nameResult = nameResult;
+        this.textResult = textResult;
+    }
+
+    private static long expirationFor(long ttl) {
+        return System.currentTimeMillis() + (ttl * 1000);
+    }
+
+    /** Returns a record with the same result and expiration time as this one, but for a
+     * different node. This is used to link the results of an alias to the original name.
+     *
+     * @param node Node the new record is a result for.
+     * @return A new record for the specified node.
+     */
+    public ResourceRecord withNode(DNSNode node) {
+        return new ResourceRecord(node.getName(), node.getType(), typeCodeFor(node), expirationTime, addressKind,
+                ipv4, ipv6High, ipv6Low, nameResult, textResult);
+    }
+
+    /** Returns a record with the same result as this one, but for a different node, expiring no
+     * later than a given time. This is used to link the results at the end of a CNAME chain to
+     * the original name, as they are only valid for as long as every link of the chain.
+     *
+     * @param node           Node the new record is a result for.
+     * @param expirationTime Latest expiration time of the new record, in milliseconds since the epoch.
+     * @return A new record for the specified node.
+     */
+    public ResourceRecord withNode(DNSNode node, long expirationTime) {
+        return new ResourceRecord(node.getName(), node.getType(), typeCodeFor(node),
+                Math.min(this.expirationTime, expirationTime), addressKind, ipv4, ipv6High, ipv6Low, nameResult, textResult);
+    }
+
+    // Type code of a copy of this record for another node, which keeps this record's code if
+    // the node has the same type
+    private int typeCodeFor(DNSNode node) {
+        return node.getType() == type ? typeCode : node.getType().getCode();
+    }
+
+    /** Returns a record with the same node and result as this one, valid for a number of seconds
+     * from now. This is used to serve a record that has already expired (RFC 8767).
+     *
+     * @param ttl Number of seconds the new record is valid.
+     * @return A new record with the specified TTL.
+     */
+    public ResourceRecord withTTL(long ttl) {
+        return new ResourceRecord(name, type, typeCode, expirationFor(ttl), addressKind,
+                ipv4, ipv6High, ipv6Low, nameResult, textResult);
+    }
+
+    /** Returns the node this record is a result for. A new node is returned on each call, as
+     * records do not keep one.
+     */
     public DNSNode getNode() {
-        return node;
+        return new DNSNode(name, type);
+    }
+
+    public DomainName getName() {
+        return name;
     }
 
     public String getHostName() {
-        return node.getHostName();
+        return name.toString();
     }
 
     public RecordType getType() {
-        return node.getType();
+        return type;
+    }
+
+    /** The type code of this record, as found in the message it came from. It is the code of
+     * getType(), except for records of types not known to the application (OTHER).
+     *
+     * @return The record type code, between 0 and 65535.
+     */
+    public int getTypeCode() {
+        return typeCode;
     }
 
     /** The TTL for this record. It is returned based on the (ceiling of the) number of seconds
@@ -48,7 +190,7 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - System.currentTimeMillis() + 999) / 1000;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +200,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > System.currentTimeMillis();
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,15 +212,168 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
     }
 
+    /** The time at which this record expires, in milliseconds since the epoch, as returned by
+     * System.currentTimeMillis().
+     *
+     * @return The expiration time of this record.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /** The result of this record in textual form: the address, in its usual notation, for
+     * address records, the name for NS, CNAME and PTR records, and the text provided when the
+     * record was created otherwise. The string is built on each call.
+     */
     public String getTextResult() {
+        if (nameResult != null)
+            return nameResult.toString();
+        if (addressKind == IPV4)
+            return (ipv4 >>> 24) + "." + ((ipv4 >>> 16) & 0xff) + "." + ((ipv4 >>> 8) & 0xff) + "." + (ipv4 & 0xff);
+        if (addressKind == IPV6)
+            return getInetResult().getHostAddress();
         return textResult;
     }
 
+    /** The result of this record if it is a domain name (e.g., for NS, CNAME or PTR records).
+     *
+     * @return The name this record links to, or null if the result is not a name.
+     */
+    public DomainName getNameResult() {
+        return nameResult;
+    }
+
+    /** The result of this record if it is an address. A new InetAddress is created on each
+     * call.
+     *
+     * @return The address of this record, or null if the result is not an address.
+     */
     public InetAddress getInetResult() {
-        return inetResult;
+        byte[] address;
+        if (addressKind == IPV4) {
+            address = new byte[4];
+            putInt(address, 0, ipv4);
+        } else if (addressKind == IPV6) {
+            address = new byte[16];
+            putInt(address, 0, (int) (ipv6High >>> 32));
+            putInt(address, 4, (int) ipv6High);
+            putInt(address, 8, (int) (ipv6Low >>> 32));
+            putInt(address, 12, (int) ipv6Low);
+        } else {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of invalid length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int toInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        return (long) toInt(bytes, offset) << 32 | (toInt(bytes, offset + 4) & 0xffffffffL);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /** Number of bytes used by this record when written by writeTo.
+     */
+    int serializedSize() {
+        int size = name.getWireLength() + 2 + 8 + 1;
+        if (addressKind != NO_ADDRESS)
+            return size + addressKind;
+        if (nameResult != null)
+            return size + nameResult.getWireLength();
+        return size + 4 + (textResult == null ? 0 : textResult.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    /** Writes this record at the buffer's position: owner name, type code, absolute expiration
+     * time and result. Address and name results are written in wire format.
+     *
+     * @param buffer Buffer where the record is written, with at least serializedSize() bytes
+     *               remaining.
+     */
+    void writeTo(ByteBuffer buffer) {
+        name.writeTo(buffer);
+        buffer.putShort((short) typeCode);
+        buffer.putLong(expirationTime);
+        if (addressKind == IPV4) {
+            buffer.put(RESULT_IPV4).putInt(ipv4);
+        } else if (addressKind == IPV6) {
+            buffer.put(RESULT_IPV6).putLong(ipv6High).putLong(ipv6Low);
+        } else if (nameResult != null) {
+            buffer.put(RESULT_NAME);
+            nameResult.writeTo(buffer);
+        } else if (textResult == null) {
+            buffer.put(RESULT_TEXT).putInt(-1);
+        } else {
+            byte[] text = textResult.getBytes(StandardCharsets.UTF_8);
+            buffer.put(RESULT_TEXT).putInt(text.length).put(text);
+        }
+    }
+
+    /** Reads a record written by writeTo at the buffer's position, and moves the position past
+     * it. The record keeps the expiration time it was written with.
+     *
+     * @param buffer Buffer containing the record.
+     * @return The record read.
+     * @throws IllegalArgumentException If the buffer does not contain a valid record.
+     */
+    static ResourceRecord readFrom(ByteBuffer buffer) {
+        DomainName name = DomainName.readFrom(buffer);
+        int typeCode = buffer.getShort() & 0xffff;
+        RecordType type = RecordType.getByCode(typeCode);
+        long expirationTime = buffer.getLong();
+        byte kind = buffer.get();
+        switch (kind) {
+            case RESULT_IPV4:
+                return new ResourceRecord(name, type, typeCode, expirationTime, IPV4, buffer.getInt(), 0, 0, null, null);
+            case RESULT_IPV6:
+                return new ResourceRecord(name, type, typeCode, expirationTime, IPV6, 0, buffer.getLong(), buffer.getLong(),
+                        null, null);
+            case RESULT_NAME:
+                return new ResourceRecord(name, type, typeCode, expirationTime, NO_ADDRESS, 0, 0, 0,
+                        DomainName.readFrom(buffer), null);
+            case RESULT_TEXT:
+                int length = buffer.getInt();
+                String text = null;
+                if (length >= 0) {
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    text = new String(bytes, StandardCharsets.UTF_8);
+                }
+                return new ResourceRecord(name, type, typeCode, expirationTime, NO_ADDRESS, 0, 0, 0, null, text);
+            default:
+                throw new IllegalArgumentException("Invalid record result kind: " + kind);
+        }
+    }
+
+    /** Estimates the number of bytes of heap used by this record, including its result. The
+     * estimate assumes compressed object pointers and compact (one byte per character) strings,
+     * and is only meant for cache size limits.
+     *
+     * @return The approximate size of this record, in bytes.
+     */
+    int estimatedSize() {
+        // Names are shared with other records, so they are not counted here
+        return 64 + (textResult == null ? 0 : estimatedSize(textResult));
+    }
+
+    private static int estimatedSize(String string) {
+        return 24 + 16 + ((string.length() + 7) & ~7);
     }
 
     @Override
@@ -88,15 +383,17 @@ public class ResourceRecord implements Serializable {
 
         ResourceRecord record = (ResourceRecord) o;
 
-        if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        return name == record.name && typeCode == record.typeCode
+                && addressKind == record.addressKind && ipv4 == record.ipv4
+                && ipv6High == record.ipv6High && ipv6Low == record.ipv6Low
+                && nameResult == record.nameResult && Objects.equals(textResult, record.textResult);
     }
 
     @Override
     public int hashCode() {
-        int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        int result = 31 * name.hashCode() + typeCode;
+        result = 31 * result + ipv4 + Long.hashCode(ipv6High ^ ipv6Low);
+        result = 31 * result + (nameResult != null ? nameResult.hashCode() : Objects.hashCode(textResult));
         return result;
     }
 }
@@ -0,0 +1,170 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Round-trip time statistics of the servers queried so far, used to pick which server of a set
+ * to query first and how long to wait for it. For each server, the smoothed round-trip time
+ * (SRTT) and its variation (RTTVAR) are maintained as in TCP (RFC 6298), and the retransmission
+ * timeout is SRTT + 4 * RTTVAR, within fixed bounds. Each consecutive timeout doubles a server's
+ * timeout and makes it less preferred, until it responds again.
+ *
+ * Servers are ordered by expected response time. Servers never queried are assumed to respond
+ * within the initial timeout, and a small fraction of selections picks a random server first,
+ * so that the statistics of servers that are not the fastest are refreshed once in a while.
+ *
+ * The statistics of at most 10,000 servers are kept. When a new server would exceed that, the
+ * servers not heard from for ten minutes are forgotten, as their statistics are out of date,
+ * followed by the least recently updated ones if needed.
+ */
+public class ServerStatistics {
+
+    private static final long INITIAL_TIMEOUT_MILLIS = 1000;
+    private static final long MIN_TIMEOUT_MILLIS = 100;
+    private static final long MAX_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_BACKOFF = 5;
+    private static final double EXPLORATION_RATE = 0.05;
+    private static final int MAX_SERVERS = 10_000;
+    // Number of servers left by a purge, so that purges are not run on every new server
+    private static final int PURGED_SIZE = MAX_SERVERS * 3 / 4;
+    private static final long STALE_MILLIS = 10 * 60 * 1000;
+
+    private static ServerStatistics instance = new ServerStatistics();
+
+    private final Map<InetAddress, Server> servers = new ConcurrentHashMap<>();
+
+    private ServerStatistics() {
+    }
+
+    public static ServerStatistics getInstance() {
+        return instance;
+    }
+
+    /** Records a response received from a server.
+     *
+     * @param server    Address of the server.
+     * @param rttMillis Time between sending the query and receiving the response, in milliseconds.
+     */
+    public void recordResponse(InetAddress server, double rttMillis) {
+        statsFor(server).sample(rttMillis);
+    }
+
+    /** Records a query to a server that timed out.
+     *
+     * @param server Address of the server.
+     */
+    public void recordTimeout(InetAddress server) {
+        statsFor(server).timedOut();
+    }
+
+    // Returns the statistics of a server, adding it if it is new.
+    private Server statsFor(InetAddress server) {
+        Server stats = servers.get(server);
+        if (stats != null)
+            return stats;
+        if (servers.size() >= MAX_SERVERS)
+            purge();
+        return servers.computeIfAbsent(server, address -> new Server());
+    }
+
+    // Forgets the servers not heard from for a while, then the least recently updated ones,
+    // until there are at most PURGED_SIZE servers left.
+    private synchronized void purge() {
+        if (servers.size() < MAX_SERVERS)
+            return;
+        long staleBefore = System.currentTimeMillis() - STALE_MILLIS;
+        servers.values().removeIf(stats -> stats.lastUpdated < staleBefore);
+        if (servers.size() <= PURGED_SIZE)
+            return;
+
+        // Update times are read once, as they may change while sorting
+        List<Map.Entry<InetAddress, Long>> byAge = new ArrayList<>(servers.size());
+        for (Map.Entry<InetAddress, Server> entry : servers.entrySet())
+            byAge.add(Map.entry(entry.getKey(), entry.getValue().lastUpdated));
+        byAge.sort(Map.Entry.comparingByValue());
+        for (int i = 0; i < byAge.size() && servers.size() > PURGED_SIZE; i++)
+            servers.remove(byAge.get(i).getKey());
+    }
+
+    /** Returns how long to wait for a response from a server before sending the query again.
+     *
+     * @param server Address of the server.
+     * @return The retransmission timeout of the server, in milliseconds.
+     */
+    public long timeoutFor(InetAddress server) {
+        Server stats = servers.get(server);
+        return stats == null ? INITIAL_TIMEOUT_MILLIS : stats.timeout();
+    }
+
+    /** Returns a list of equivalent servers ordered by expected response time, fastest first.
+     * Once in a while, a random server is moved to the front instead.
+     *
+     * @param candidates Addresses of the servers.
+     * @return A new list with the same servers, in the order they should be queried.
+     */
+    public List<InetAddress> order(List<InetAddress> candidates) {
+        List<InetAddress> ordered = new ArrayList<>(candidates);
+        if (ordered.size() < 2)
+            return ordered;
+        // Expected times are read once, as they may change while sorting
+        Map<InetAddress, Double> expected = new HashMap<>();
+        for (InetAddress server : ordered)
+            expected.put(server, expectedMillis(server));
+        ordered.sort(Comparator.comparingDouble(expected::get));
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < EXPLORATION_RATE)
+            Collections.swap(ordered, 0, 1 + random.nextInt(ordered.size() - 1));
+        return ordered;
+    }
+
+    private double expectedMillis(InetAddress server) {
+        Server stats = servers.get(server);
+        return stats == null ? INITIAL_TIMEOUT_MILLIS : stats.expectedMillis();
+    }
+
+    private static final class Server {
+        private double srtt;
+        private double rttvar;
+        private boolean sampled;
+        private int timeouts;
+        // Time of the last response or timeout, in milliseconds since the epoch
+        private volatile long lastUpdated = System.currentTimeMillis();
+
+        synchronized void sample(double rtt) {
+            if (!sampled) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+                sampled = true;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+                srtt = 0.875 * srtt + 0.125 * rtt;
+            }
+            timeouts = 0;
+            lastUpdated = System.currentTimeMillis();
+        }
+
+        synchronized void timedOut() {
+            if (timeouts < MAX_BACKOFF)
+                timeouts++;
+            lastUpdated = System.currentTimeMillis();
+        }
+
+        synchronized long timeout() {
+            long base = sampled ? (long) Math.ceil(srtt + 4 * rttvar) : INITIAL_TIMEOUT_MILLIS;
+            base = Math.max(MIN_TIMEOUT_MILLIS, base);
+            return Math.min(MAX_TIMEOUT_MILLIS, base << timeouts);
+        }
+
+        // A server that timed out is expected to take as long as its (backed off) timeout.
+        synchronized double expectedMillis() {
+            return timeouts > 0 ? timeout() : sampled ? srtt : INITIAL_TIMEOUT_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/** Lookups in progress, shared by all callers asking for the same node at the same time. The
+ * first caller for a node starts its resolution (a flight), and later callers wait for that
+ * flight instead of sending the same queries again, e.g., when a popular record has just
+ * expired. Once the flight completes, it is forgotten; results are then taken from the cache.
+ *
+ * A resolution may need other lookups, such as the addresses of nameservers without glue or the
+ * targets of CNAME records. Each flight records the flights it waits for, and a lookup that would
+ * end up waiting for itself (e.g., two nameservers that can only be found through each other) is
+ * not joined but completes with no results right away, as it could never complete otherwise.
+ *
+ * Both the blocking and the asynchronous resolvers use the same instance, so lookups from either
+ * one are coalesced.
+ */
+final class SingleFlight {
+
+    private static SingleFlight instance = new SingleFlight();
+
+    // Guarded by this
+    private final Map<DNSNode, Flight> flights = new HashMap<>();
+
+    private SingleFlight() {
+    }
+
+    static SingleFlight getInstance() {
+        return instance;
+    }
+
+    /** Returns the results of a lookup, starting it only if no lookup of the same node is in
+     * progress already.
+     *
+     * @param node   Host name and record type to be looked up.
+     * @param parent Flight on whose behalf the lookup is made, or null for a lookup requested by
+     *               a user.
+     * @param lookup Starts the resolution of the node, given the flight created for it; it is
+     *               the parent of any lookup the resolution needs. Blocking resolvers may run the
+     *               whole resolution in this function and return a completed future.
+     * @return A new future completed with the caller's own copy of the results, or completed
+     * exceptionally if the resolution failed.
+     */
+    CompletableFuture<Set<ResourceRecord>> join(DNSNode node, Flight parent,
+                                                Function<Flight, CompletionStage<Set<ResourceRecord>>> lookup) {
+        Flight flight;
+        boolean started = false;
+        synchronized (this) {
+            flight = flights.get(node);
+            if (flight != null && parent != null && flight.reaches(parent))
+                return CompletableFuture.completedFuture(Collections.emptySet());
+            if (flight == null) {
+                flight = new Flight();
+                flights.put(node, flight);
+                started = true;
+            }
+            if (parent != null)
+                parent.waitingFor.add(flight);
+        }
+
+        if (started) {
+            Flight own = flight;
+            try {
+                lookup.apply(own).whenComplete((results, error) -> land(node, own, results, error));
+            } catch (RuntimeException e) {
+                land(node, own, null, e);
+            }
+        }
+        return flight.future.thenApply(Set::copyOf);
+    }
+
+    // Forgets a flight before completing it, so that callers arriving after its completion find
+    // the results in the cache instead of joining it.
+    private void land(DNSNode node, Flight flight, Set<ResourceRecord> results, Throwable error) {
+        synchronized (this) {
+            flights.remove(node, flight);
+        }
+        if (error != null)
+            flight.future.completeExceptionally(error);
+        else
+            flight.future.complete(results);
+    }
+
+    /** A lookup in progress.
+     */
+    static final class Flight {
+        private final CompletableFuture<Set<ResourceRecord>> future = new CompletableFuture<>();
+        // Guarded by the SingleFlight instance
+        private final Set<Flight> waitingFor = new HashSet<>();
+
+        // Returns true if this flight is, or waits (directly or not) for, the target flight.
+        // Completed flights no longer wait for anything.
+        private boolean reaches(Flight target) {
+            Set<Flight> visited = new HashSet<>();
+            Deque<Flight> pending = new ArrayDeque<>();
+            pending.push(this);
+            while (!pending.isEmpty()) {
+                Flight flight = pending.pop();
+                if (flight == target)
+                    return true;
+                if (flight.future.isDone() || !visited.add(flight))
+                    continue;
+                pending.addAll(flight.waitingFor);
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+/** Transport sending queries over TCP, used when a response received over UDP is truncated
+ * (its TC bit is set, or it did not fit in the receive buffer).
+ *
+ * Connections are persistent and pipelined, as in RFC 7766: each server has a small pool of
+ * connections, each connection carries any number of outstanding queries, and responses are
+ * matched to their queries by ID, in whatever order they arrive. A new connection is only opened
+ * when every connection to the server is busy with many queries, so repeated large queries to
+ * the same server do not pay for a handshake each time. Connections idle for a while are closed,
+ * along with the pool of their server once it has none left, and a query whose connection is
+ * closed by the server before the response arrives is sent again once, on a new connection.
+ *
+ * A single instance is shared by all resolvers. All its connections are non-blocking channels
+ * handled by one daemon thread with a selector, started on the first query, so the number of
+ * threads does not grow with the number of queries or connections. Futures returned by
+ * queryAsync are completed on that thread, so actions depending on them must not block.
+ */
+public class TcpTransport implements QueryTransport {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+    private static final long CONNECT_TIMEOUT_MILLIS = 3000;
+    private static final long QUERY_TIMEOUT_MILLIS = 5000;
+    private static final long IDLE_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_CONNECTIONS_PER_SERVER = 2;
+    private static final int MAX_ATTEMPTS = 2;
+    // Outstanding queries on a connection before another one is opened
+    private static final int PIPELINE_DEPTH = 32;
+
+    private static TcpTransport instance = new TcpTransport();
+
+    // Except for tasks, the state below is only used on the transport's thread
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<InetAddress, ServerPool> pools = new HashMap<>();
+    private final PriorityQueue<Deadline> deadlines =
+            new PriorityQueue<>(Comparator.comparingLong(deadline -> deadline.time));
+    private final SplittableRandom random = new SplittableRandom(new SecureRandom().nextLong());
+    private final MessageDecoder decoder = new MessageDecoder();
+    // Guarded by this; null until the first query
+    private Selector selector;
+
+    private TcpTransport() {
+    }
+
+    public static TcpTransport getInstance() {
+        return instance;
+    }
+
+    /** Sends a query to a server over TCP and blocks until the response arrives.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param server Address of the server to be used for the query.
+     * @return The parsed response.
+     * @throws TimeoutTwiceException If the server did not respond in time.
+     * @throws OtherIOException      If no connection could be made, or the response was invalid.
+     */
+    @Override
+    public DNSResponse query(DNSNode node, InetAddress server) {
+        try {
+            return queryAsync(node, server).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new OtherIOException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OtherIOException();
+        }
+    }
+
+    /** Sends a query to a server over TCP without blocking the calling thread.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param server Address of the server to be used for the query.
+     * @return A future completed with the parsed response, or completed exceptionally with the
+     * exception query would have thrown.
+     */
+    public CompletableFuture<DNSResponse> queryAsync(DNSNode node, InetAddress server) {
+        Query query = new Query(node, server);
+        Selector selector = start();
+        if (selector == null) {
+            query.response.completeExceptionally(new OtherIOException());
+        } else {
+            tasks.add(() -> send(query));
+            selector.wakeup();
+        }
+        return query.response;
+    }
+
+    // Returns the selector of the transport's thread, starting the thread if needed, or null if
+    // the selector cannot be opened.
+    private synchronized Selector start() {
+        if (selector == null) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                return null;
+            }
+            Thread thread = new Thread(this::run, "dns-tcp");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return selector;
+    }
+
+    // Runs a task on the transport's thread after a delay. Must be called on that thread.
+    private void schedule(long delayMillis, Runnable task) {
+        deadlines.add(new Deadline(System.currentTimeMillis() + delayMillis, task));
+    }
+
+    // Sends a query on a connection to its server. If no connection can be made, the query fails.
+    private void send(Query query) {
+        query.attempts++;
+        Connection connection = pools.computeIfAbsent(query.server, ServerPool::new).acquire();
+        if (connection == null)
+            query.response.completeExceptionally(new OtherIOException());
+        else
+            connection.send(query);
+    }
+
+    // Event loop: runs submitted tasks, handles the events of the connections and runs the
+    // tasks whose time has come.
+    private void run() {
+        while (true) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                Deadline first = deadlines.peek();
+                if (first == null)
+                    selector.select();
+                else
+                    selector.select(Math.max(1, first.time - System.currentTimeMillis()));
+                for (SelectionKey key : selector.selectedKeys())
+                    ((Connection) key.attachment()).handle(key);
+                selector.selectedKeys().clear();
+
+                long now = System.currentTimeMillis();
+                Deadline deadline;
+                while ((deadline = deadlines.peek()) != null && deadline.time <= now)
+                    deadlines.poll().task.run();
+            } catch (IOException | RuntimeException e) {
+                // The state of the connections is unknown: they are all dropped, failing their
+                // queries, and the transport starts over with new connections
+                for (ServerPool pool : new ArrayList<>(pools.values()))
+                    for (Connection connection : new ArrayList<>(pool.connections))
+                        connection.close(false);
+                pools.clear();
+                deadlines.clear();
+            }
+        }
+    }
+
+    // Connections to a server.
+    private final class ServerPool {
+        private final InetAddress server;
+        private final List<Connection> connections = new ArrayList<>();
+
+        ServerPool(InetAddress server) {
+            this.server = server;
+        }
+
+        // Returns the least busy connection, opening a new one if there is none or if all of them
+        // are busy and the pool is not full. Returns null if no connection is available.
+        Connection acquire() {
+            Connection best = null;
+            for (Connection connection : connections)
+                if (best == null || connection.pending.size() < best.pending.size())
+                    best = connection;
+            if (best != null && (best.pending.size() < PIPELINE_DEPTH || connections.size() >= MAX_CONNECTIONS_PER_SERVER))
+                return best;
+
+            try {
+                Connection connection = new Connection(this);
+                connections.add(connection);
+                return connection;
+            } catch (IOException e) {
+                if (connections.isEmpty())
+                    pools.remove(server, this);
+                return best;
+            }
+        }
+
+        // Drops a closed connection, and the pool itself once it has no connection left.
+        void remove(Connection connection) {
+            connections.remove(connection);
+            if (connections.isEmpty())
+                pools.remove(server, this);
+        }
+    }
+
+    // A persistent connection, which may carry several queries at the same time.
+    private final class Connection {
+        private final ServerPool pool;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Map<Integer, Query> pending = new HashMap<>();
+        // Requests not fully written yet, each preceded by its length
+        private final Deque<ByteBuffer> outgoing = new ArrayDeque<>();
+        private final ByteBuffer length = ByteBuffer.allocate(2);
+        // Response being read, once its length is known
+        private ByteBuffer message;
+        private long lastActive = System.currentTimeMillis();
+        private boolean connected;
+        private boolean closed;
+
+        Connection(ServerPool pool) throws IOException {
+            this.pool = pool;
+            this.channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connected = channel.connect(new InetSocketAddress(pool.server, DEFAULT_DNS_PORT));
+                this.key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            if (!connected) {
+                schedule(CONNECT_TIMEOUT_MILLIS, () -> {
+                    if (!connected)
+                        close(false);
+                });
+            }
+            schedule(IDLE_TIMEOUT_MILLIS, this::closeIfIdle);
+        }
+
+        // Queues a query, which is written as soon as the channel is connected and writable.
+        void send(Query query) {
+            int queryID;
+            do {
+                queryID = random.nextInt(1, 0x10000);
+            } while (pending.containsKey(queryID));
+            pending.put(queryID, query);
+
+            // Each message is preceded by its length (RFC 1035, section 4.2.2)
+            ByteBuffer request = ByteBuffer.allocate(2 + QueryPacketBuilder.MAX_QUERY_LENGTH);
+            request.position(2);
+            // EDNS is only needed for the size of UDP responses
+            QueryPacketBuilder.writeQuery(request, queryID, query.node, 0);
+            request.putShort(0, (short) (request.position() - 2)).flip();
+            outgoing.add(request);
+            if (connected)
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+            int id = queryID;
+            schedule(QUERY_TIMEOUT_MILLIS, () -> {
+                if (pending.remove(id, query))
+                    query.response.completeExceptionally(new TimeoutTwiceException());
+            });
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isConnectable() && channel.finishConnect()) {
+                    connected = true;
+                    key.interestOps(outgoing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                if (key.isValid() && key.isWritable())
+                    write();
+                if (key.isValid() && key.isReadable())
+                    read();
+            } catch (IOException e) {
+                close(connected);
+            }
+        }
+
+        private void write() throws IOException {
+            ByteBuffer request;
+            while ((request = outgoing.peek()) != null) {
+                channel.write(request);
+                if (request.hasRemaining())
+                    return;
+                outgoing.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            lastActive = System.currentTimeMillis();
+        }
+
+        // Reads all the responses available, completing the queries they match.
+        private void read() throws IOException {
+            while (true) {
+                if (message == null) {
+                    if (channel.read(length) < 0) {
+                        close(true);
+                        return;
+                    }
+                    if (length.hasRemaining())
+                        return;
+                    message = ByteBuffer.allocate(length.getShort(0) & 0xffff);
+                    length.clear();
+                }
+                if (channel.read(message) < 0) {
+                    close(true);
+                    return;
+                }
+                if (message.hasRemaining())
+                    return;
+                message.flip();
+                complete(message);
+                message = null;
+                lastActive = System.currentTimeMillis();
+            }
+        }
+
+        private void complete(ByteBuffer message) {
+            if (message.remaining() < 2)
+                return;
+            Query query = pending.remove(message.getShort(0) & 0xffff);
+            if (query == null)
+                return;
+            try {
+                query.response.complete(DNSResponse.parse(message, decoder));
+            } catch (IOException | RuntimeException e) {
+                query.response.completeExceptionally(e);
+            }
+        }
+
+        private void closeIfIdle() {
+            if (closed)
+                return;
+            long idleUntil = lastActive + IDLE_TIMEOUT_MILLIS;
+            if (pending.isEmpty() && idleUntil <= System.currentTimeMillis())
+                close(true);
+            else
+                schedule(Math.max(1, idleUntil - System.currentTimeMillis()), this::closeIfIdle);
+        }
+
+        // Closes the connection. Queries still waiting are sent again on another connection if
+        // retry is set and they have attempts left, and fail otherwise.
+        void close(boolean retry) {
+            if (closed)
+                return;
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing else to release
+            }
+            pool.remove(this);
+            List<Query> queries = new ArrayList<>(pending.values());
+            pending.clear();
+            for (Query query : queries) {
+                if (retry && query.attempts < MAX_ATTEMPTS)
+                    send(query);
+                else
+                    query.response.completeExceptionally(new OtherIOException());
+            }
+        }
+    }
+
+    private static final class Query {
+        private final DNSNode node;
+        private final InetAddress server;
+        private final CompletableFuture<DNSResponse> response = new CompletableFuture<>();
+        private int attempts;
+
+        Query(DNSNode node, InetAddress server) {
+            this.node = node;
+            this.server = server;
+        }
+    }
+
+    // A task to be run at a specific time.
+    private static final class Deadline {
+        private final long time;
+        private final Runnable task;
+
+        Deadline(long time, Runnable task) {
+            this.time = time;
+            this.task = task;
+        }
+    }
+}
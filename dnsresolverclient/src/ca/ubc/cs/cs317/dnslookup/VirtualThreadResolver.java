@@ -0,0 +1,111 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Resolver mode in which each lookup runs as plain blocking code on its own virtual thread,
+ * with its own Resolver instance. Queries from all lookups are multiplexed over the workers of
+ * an AsyncResolver engine, each with its own selector and a small pool of non-blocking channels
+ * on different source ports, instead of each lookup holding a socket, so a very large number of
+ * lookups can be outstanding at the same time. When a referral has no glue, the addresses of
+ * several of its nameservers are looked up at the same time by the engine.
+ *
+ * Virtual threads require Java 21. On older runtimes lookups run on a fixed pool of daemon
+ * platform threads instead, which limits how many of them can be in progress at once.
+ */
+public class VirtualThreadResolver implements Closeable {
+
+    private static final int PLATFORM_THREADS = 256;
+
+    private final AsyncResolver engine;
+    private final QueryTransport transport;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private volatile InetAddress rootServer;
+
+    /** Creates a resolver and the engine used for all its queries.
+     *
+     * @param rootServer Address of the root server where resolutions start.
+     * @throws IOException If the engine's channels or selectors cannot be opened.
+     */
+    public VirtualThreadResolver(InetAddress rootServer) throws IOException {
+        this.rootServer = rootServer;
+        this.engine = new AsyncResolver(rootServer);
+        this.transport = engine.asTransport();
+        ExecutorService virtualExecutor = newVirtualThreadPerTaskExecutor();
+        this.virtualThreads = virtualExecutor != null;
+        this.executor = virtualThreads ? virtualExecutor : Executors.newFixedThreadPool(PLATFORM_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "dns-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Looked up reflectively so the application still builds and runs on runtimes before Java 21.
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void setRootServer(InetAddress rootServer) {
+        this.rootServer = rootServer;
+        engine.setRootServer(rootServer);
+    }
+
+    /** Sets the maximum number of servers raced for each query.
+     *
+     * @see AsyncResolver#setRaceWidth(int)
+     */
+    public void setRaceWidth(int raceWidth) {
+        engine.setRaceWidth(raceWidth);
+    }
+
+    /** Returns true if lookups run on virtual threads, or false if this runtime does not support
+     * them and lookups run on a pool of platform threads.
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /** Starts a lookup for a node on its own thread.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A future completed with the set of resource records for the node, or completed
+     * exceptionally (e.g., with a TimeoutTwiceException) if the lookup failed.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node) {
+        InetAddress root = rootServer;
+        return CompletableFuture.supplyAsync(() -> new Resolver(transport, root, null, false, engine).getResults(node), executor);
+    }
+
+    /** Finds the A and AAAA records of a name together. The lookup runs on the engine directly,
+     * as its queries are sent at the same time rather than one after the other.
+     *
+     * @see AsyncResolver#resolveDualStack(DomainName)
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolveDualStack(DomainName name) {
+        return engine.resolveDualStack(name);
+    }
+
+    /** Looks up a node again in the background, even if it is cached.
+     *
+     * @see AsyncResolver#refresh(DNSNode)
+     */
+    public CompletableFuture<Set<ResourceRecord>> refresh(DNSNode node) {
+        return engine.refresh(node);
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        engine.close();
+    }
+}